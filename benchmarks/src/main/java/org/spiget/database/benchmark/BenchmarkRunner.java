@@ -0,0 +1,25 @@
+package org.spiget.database.benchmark;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Runs the JMH benchmarks, writing machine-readable JSON results unless another result format is requested
+ */
+public class BenchmarkRunner {
+
+    public static void main(String[] args) throws Exception {
+        List<String> arguments = new ArrayList<>(Arrays.asList(args));
+        if (!arguments.contains("-rf")) {
+            arguments.add(0, "-rf");
+            arguments.add(1, "json");
+            if (!arguments.contains("-rff")) {
+                arguments.add(2, "-rff");
+                arguments.add(3, "jmh-result.json");
+            }
+        }
+        org.openjdk.jmh.Main.main(arguments.toArray(new String[0]));
+    }
+
+}
@@ -0,0 +1,122 @@
+package org.spiget.database.benchmark;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import org.spiget.data.resource.Resource;
+import org.spiget.database.SpigetGson;
+
+import java.util.Base64;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * Realistically sized data model objects, shaped like what the crawler stores
+ */
+class Fixtures {
+
+    /**
+     * @param descriptionSize size of the (base64 encoded) description, in bytes before encoding
+     * @param children        number of versions, updates and reviews referenced by the resource
+     */
+    static JsonObject resourceJson(int id, int descriptionSize, int children) {
+        Random random = new Random(id);
+
+        JsonObject json = new JsonObject();
+        json.addProperty("id", id);
+        json.addProperty("name", "Benchmark Resource #" + id);
+        json.addProperty("tag", "A resource used to measure how fast the database client is");
+        json.addProperty("contributors", "inventivetalent, someone else");
+        json.addProperty("likes", random.nextInt(5000));
+        json.addProperty("releaseDate", 1400000000L + random.nextInt(100000000));
+        json.addProperty("updateDate", 1500000000L + random.nextInt(100000000));
+        json.addProperty("downloads", random.nextInt(1000000));
+        json.addProperty("external", false);
+        json.addProperty("premium", false);
+        json.addProperty("price", 0.0);
+        json.addProperty("description", randomBase64(random, descriptionSize));
+        json.addProperty("documentation", randomBase64(random, descriptionSize / 4));
+        json.addProperty("sourceCodeLink", "https://github.com/example/resource-" + id);
+        json.addProperty("donationLink", "https://example.com/donate");
+
+        JsonObject file = new JsonObject();
+        file.addProperty("type", ".jar");
+        file.addProperty("size", 1.5);
+        file.addProperty("sizeUnit", "MB");
+        file.addProperty("url", "resources/resource." + id + "/download?version=" + children);
+        json.add("file", file);
+
+        JsonArray testedVersions = new JsonArray();
+        for (String version : new String[] { "1.8", "1.9", "1.10", "1.11", "1.12", "1.13", "1.14", "1.15", "1.16", "1.17" }) {
+            testedVersions.add(version);
+        }
+        json.add("testedVersions", testedVersions);
+
+        JsonObject rating = new JsonObject();
+        rating.addProperty("count", random.nextInt(500));
+        rating.addProperty("average", random.nextFloat() * 5);
+        json.add("rating", rating);
+
+        JsonObject icon = new JsonObject();
+        icon.addProperty("url", "data/resource_icons/" + (id / 1000) + "/" + id + ".jpg");
+        icon.addProperty("data", randomBase64(random, 6 * 1024));
+        json.add("icon", icon);
+
+        json.add("author", reference(6643));
+        json.add("category", reference(10));
+
+        JsonObject version = reference(id * 100);
+        version.addProperty("uuid", UUID.nameUUIDFromBytes(new byte[] { (byte) id }).toString());
+        json.add("version", version);
+
+        JsonArray versions = new JsonArray();
+        JsonArray updates = new JsonArray();
+        JsonArray reviews = new JsonArray();
+        for (int i = 0; i < children; i++) {
+            versions.add(reference(id * 100 + i));
+            updates.add(reference(id * 100 + i));
+            reviews.add(reference(id * 100 + i));
+        }
+        json.add("versions", versions);
+        json.add("updates", updates);
+        json.add("reviews", reviews);
+
+        return json;
+    }
+
+    static JsonObject updateJson(int id, int descriptionSize) {
+        JsonObject json = new JsonObject();
+        json.addProperty("id", id);
+        json.addProperty("title", "Update #" + id);
+        json.addProperty("description", randomBase64(new Random(id), descriptionSize));
+        json.addProperty("date", 1500000000L + id);
+        json.addProperty("likes", id % 100);
+        return json;
+    }
+
+    static JsonObject reviewJson(int id, int messageSize) {
+        JsonObject json = new JsonObject();
+        json.addProperty("id", id);
+        json.add("author", reference(6643));
+        json.addProperty("message", randomBase64(new Random(id), messageSize));
+        json.addProperty("version", "1.0.0");
+        json.addProperty("date", 1500000000L + id);
+        return json;
+    }
+
+    static Resource resource(int id, int descriptionSize, int children) {
+        return SpigetGson.RESOURCE.fromJson(resourceJson(id, descriptionSize, children), Resource.class);
+    }
+
+    private static JsonObject reference(int id) {
+        JsonObject json = new JsonObject();
+        json.addProperty("id", id);
+        return json;
+    }
+
+    private static String randomBase64(Random random, int size) {
+        byte[] bytes = new byte[size];
+        random.nextBytes(bytes);
+        return Base64.getEncoder().encodeToString(bytes);
+    }
+
+}
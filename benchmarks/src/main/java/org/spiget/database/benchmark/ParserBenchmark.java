@@ -0,0 +1,49 @@
+package org.spiget.database.benchmark;
+
+import com.google.gson.JsonObject;
+import org.bson.BsonDocument;
+import org.bson.Document;
+import org.openjdk.jmh.annotations.*;
+import org.spiget.database.DatabaseParser;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the JSON ↔ BSON conversions in {@link DatabaseParser}
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ParserBenchmark {
+
+    @Param({ "1024", "65536" })
+    public int descriptionSize;
+
+    private JsonObject json;
+    private Document   document;
+
+    @Setup
+    public void setup() {
+        json = Fixtures.resourceJson(1234, descriptionSize, 50);
+        document = DatabaseParser.toDocument(json);
+    }
+
+    @Benchmark
+    public Document toDocument() {
+        return DatabaseParser.toDocument(json);
+    }
+
+    @Benchmark
+    public BsonDocument toBsonDocument() {
+        return DatabaseParser.toBsonDocument(json);
+    }
+
+    @Benchmark
+    public JsonObject toJson() {
+        return DatabaseParser.toJson(document);
+    }
+
+}
@@ -0,0 +1,75 @@
+package org.spiget.database.benchmark;
+
+import com.mongodb.client.result.UpdateResult;
+import org.openjdk.jmh.annotations.*;
+import org.spiget.data.resource.Resource;
+import org.spiget.database.DatabaseClient;
+import org.spiget.database.InMemoryStorageBackend;
+import org.spiget.database.LookupResult;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-document cost of the resource read and write paths of {@link DatabaseClient}, in both serialization modes.
+ * The client runs on the {@link InMemoryStorageBackend}, so what's measured is everything the client does apart from the network round trip and the server.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PersistenceBenchmark {
+
+    static final int LOOKUP_SIZE = 100;
+
+    @Param({ "CODEC", "GSON" })
+    public String mode;
+
+    @Param({ "65536" })
+    public int descriptionSize;
+
+    private DatabaseClient client;
+    private Resource       resource;
+    private int[]          lookupIds;
+
+    @Setup
+    public void setup() {
+        client = new DatabaseClient(new InMemoryStorageBackend(), "benchmark");
+        client.setUseCodecs("CODEC".equals(mode));
+
+        resource = Fixtures.resource(1234, descriptionSize, 50);
+        client.insertResource(resource);
+
+        lookupIds = new int[LOOKUP_SIZE];
+        for (int i = 0; i < LOOKUP_SIZE; i++) {
+            lookupIds[i] = 10000 + i;
+            client.insertResource(Fixtures.resource(lookupIds[i], 1024, 10));
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        client.disconnect();
+    }
+
+    @Benchmark
+    public UpdateResult updateResource() {
+        return client.updateResource(resource);
+    }
+
+    @Benchmark
+    public Resource getResource() {
+        return client.getResource(resource.getId());
+    }
+
+    /**
+     * Multi-id lookup of {@link #LOOKUP_SIZE} small resources
+     */
+    @Benchmark
+    public LookupResult<Resource> getResources() {
+        return client.getResources(lookupIds);
+    }
+
+}
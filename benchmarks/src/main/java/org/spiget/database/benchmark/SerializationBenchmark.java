@@ -0,0 +1,88 @@
+package org.spiget.database.benchmark;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import org.openjdk.jmh.annotations.*;
+import org.spiget.data.author.Author;
+import org.spiget.data.category.Category;
+import org.spiget.data.resource.Resource;
+import org.spiget.data.resource.ResourceReview;
+import org.spiget.data.resource.update.ResourceUpdate;
+import org.spiget.data.resource.version.ResourceVersion;
+import org.spiget.database.SpigetGson;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encode and decode cost of each {@link SpigetGson} instance
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SerializationBenchmark {
+
+    @Param({ "RESOURCE", "RESOURCE_VERSION", "RESOURCE_UPDATE", "RESOURCE_REVIEW", "AUTHOR", "CATEGORY" })
+    public String serializer;
+
+    @Param({ "65536" })
+    public int descriptionSize;
+
+    private Gson        gson;
+    private Class<?>    type;
+    private Object      object;
+    private JsonElement json;
+
+    @Setup
+    public void setup() {
+        Resource resource = Fixtures.resource(1234, descriptionSize, 50);
+        switch (serializer) {
+            case "RESOURCE":
+                gson = SpigetGson.RESOURCE;
+                type = Resource.class;
+                object = resource;
+                break;
+            case "RESOURCE_VERSION":
+                gson = SpigetGson.RESOURCE_VERSION;
+                type = ResourceVersion.class;
+                object = new ResourceVersion(123400, "1.0.0");
+                break;
+            case "RESOURCE_UPDATE":
+                gson = SpigetGson.RESOURCE_UPDATE;
+                type = ResourceUpdate.class;
+                object = SpigetGson.RESOURCE_UPDATE.fromJson(Fixtures.updateJson(1, descriptionSize), ResourceUpdate.class);
+                break;
+            case "RESOURCE_REVIEW":
+                gson = SpigetGson.RESOURCE_REVIEW;
+                type = ResourceReview.class;
+                object = SpigetGson.RESOURCE_REVIEW.fromJson(Fixtures.reviewJson(1, descriptionSize / 16), ResourceReview.class);
+                break;
+            case "AUTHOR":
+                gson = SpigetGson.AUTHOR;
+                type = Author.class;
+                object = new Author(6643, "inventivetalent");
+                break;
+            case "CATEGORY":
+                gson = SpigetGson.CATEGORY;
+                type = Category.class;
+                object = new Category(10, "Misc");
+                break;
+            default:
+                throw new IllegalArgumentException(serializer);
+        }
+        json = gson.toJsonTree(object);
+    }
+
+    @Benchmark
+    public JsonElement encode() {
+        return gson.toJsonTree(object);
+    }
+
+    @Benchmark
+    public Object decode() {
+        return gson.fromJson(json, type);
+    }
+
+}
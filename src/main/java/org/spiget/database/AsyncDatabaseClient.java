@@ -0,0 +1,529 @@
+package org.spiget.database;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.mongodb.ConnectionString;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.MongoClientSettings;
+import com.mongodb.MongoException;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.WriteModel;
+import com.mongodb.client.result.DeleteResult;
+import com.mongodb.client.result.UpdateResult;
+import com.mongodb.reactivestreams.client.MongoClient;
+import com.mongodb.reactivestreams.client.MongoClients;
+import com.mongodb.reactivestreams.client.MongoCollection;
+import com.mongodb.reactivestreams.client.MongoDatabase;
+import io.sentry.Sentry;
+import lombok.extern.log4j.Log4j2;
+import org.apache.logging.log4j.Level;
+import org.bson.BsonDocument;
+import org.bson.BsonInt64;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.reactivestreams.Publisher;
+import org.spiget.data.UpdateRequest;
+import org.spiget.data.author.Author;
+import org.spiget.data.author.ListedAuthor;
+import org.spiget.data.category.Category;
+import org.spiget.data.category.ListedCategory;
+import org.spiget.data.resource.ListedResource;
+import org.spiget.data.resource.Resource;
+import org.spiget.data.resource.ResourceReview;
+import org.spiget.data.resource.update.ResourceUpdate;
+import org.spiget.data.resource.version.ListedResourceVersion;
+import org.spiget.data.webhook.Webhook;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Function;
+import java.util.function.ToIntFunction;
+
+/**
+ * Non-blocking variant of {@link DatabaseClient} on the reactive-streams driver.
+ * Single results are returned as {@link CompletableFuture}s, whole collections as {@link Publisher}s; both complete on the driver's threads, so callbacks shouldn't block.
+ * Documents are always (de-)serialized with the {@link SpigetGson} based codecs.
+ */
+@Log4j2
+public class AsyncDatabaseClient {
+
+    private final String                 url;
+    private final String                 dbName;
+    private final DatabaseClientSettings settings;
+
+    private MongoClient   mongoClient;
+    private MongoDatabase mongoDatabase;
+
+    private int bulkChunkSize   = 500;
+    private int lookupChunkSize = 200;
+
+    public AsyncDatabaseClient(String url, String dbName) {
+        this(url, dbName, DatabaseClientSettings.DEFAULT);
+    }
+
+    public AsyncDatabaseClient(String url, String dbName, DatabaseClientSettings settings) {
+        this.url = url;
+        this.dbName = dbName;
+        this.settings = settings;
+    }
+
+    /**
+     * Maximum number of operations sent in a single bulkWrite by the batch methods. The chunks of one call are sent concurrently.
+     */
+    public void setBulkChunkSize(int bulkChunkSize) {
+        if (bulkChunkSize < 1) { throw new IllegalArgumentException("bulkChunkSize must be positive"); }
+        this.bulkChunkSize = bulkChunkSize;
+    }
+
+    public int getBulkChunkSize() {
+        return bulkChunkSize;
+    }
+
+    /**
+     * Maximum number of ids per $in query of the multi-id lookups. The chunks of one lookup are queried concurrently.
+     */
+    public void setLookupChunkSize(int lookupChunkSize) {
+        if (lookupChunkSize < 1) { throw new IllegalArgumentException("lookupChunkSize must be positive"); }
+        this.lookupChunkSize = lookupChunkSize;
+    }
+
+    public int getLookupChunkSize() {
+        return lookupChunkSize;
+    }
+
+    // Resource
+
+    public CompletableFuture<Resource> getResource(int id) {
+        return getResources(id).thenApply(resources -> resources.get(id));
+    }
+
+    /**
+     * Also puts payloads offloaded by a {@link DatabaseClient#enablePayloadOffload(int, String...) DatabaseClient} back
+     */
+    public CompletableFuture<LookupResult<Resource>> getResources(int... ids) {
+        MongoCollection<BsonDocument> collection = getResourcesCollection().withDocumentClass(BsonDocument.class);
+        return findByIds(ids, Resource::getId, chunk -> Publishers.toList(collection.find(Filters.in("_id", chunk))).thenCompose(this::restoreResources));
+    }
+
+    /**
+     * Streams the whole resources collection, in _id order.
+     * Payloads offloaded by a {@link DatabaseClient#enablePayloadOffload(int, String...) DatabaseClient} are not put back, those fields are left empty; load such resources with {@link #getResources(int...)}.
+     */
+    public Publisher<Resource> streamResources(int batchSize) {
+        return getResourcesCollection().withDocumentClass(Resource.class).find().sort(new Document("_id", 1)).batchSize(batchSize);
+    }
+
+    /**
+     * Full update of the resource, which stores all fields inline and drops the references to payloads offloaded by a {@link DatabaseClient}
+     */
+    public CompletableFuture<UpdateResult> updateResource(ListedResource resource) {
+        long unix = System.currentTimeMillis() / 1000;
+        BsonDocument document = DatabaseParser.toBsonDocument(SpigetGson.RESOURCE, resource);
+        return Publishers.first(getResourcesCollection().updateOne(new Document("_id", resource.getId()), new Document("$set", document
+                .append("fetch", new BsonDocument("latest", new BsonInt64(unix))))
+                .append("$unset", new Document(PayloadStore.REFERENCES_FIELD, ""))));
+    }
+
+    /**
+     * Puts the offloaded payloads back into the resource documents, with one query for all of them, and decodes them
+     */
+    private CompletableFuture<List<Resource>> restoreResources(List<BsonDocument> documents) {
+        Set<String> hashes = PayloadStore.referencedHashes(documents, EntityView.FULL);
+        CompletableFuture<Map<String, String>> payloads = hashes.isEmpty()
+                ? CompletableFuture.completedFuture(Collections.<String, String>emptyMap())
+                : Publishers.toList(collection("resource_payloads").withDocumentClass(BsonDocument.class).find(Filters.in("_id", hashes))).thenApply(PayloadStore::decompress);
+        return payloads.thenApply(loaded -> {
+            PayloadStore.restore(documents, EntityView.FULL, loaded);
+            List<Resource> resources = new ArrayList<>(documents.size());
+            for (BsonDocument document : documents) {
+                resources.add(DatabaseParser.decode(document, Resource.class));
+            }
+            return resources;
+        });
+    }
+
+    public CompletableFuture<Void> insertResource(ListedResource resource) {
+        long unix = System.currentTimeMillis() / 1000;
+        BsonDocument document = DatabaseParser.toBsonDocument(SpigetGson.RESOURCE, resource);
+        return Publishers.done(getResourcesCollection().withDocumentClass(BsonDocument.class).insertOne(document
+                .append("fetch", new BsonDocument("latest", new BsonInt64(unix))
+                        .append("first", new BsonInt64(unix)))));
+    }
+
+    public CompletableFuture<DeleteResult> deleteResource(int id) {
+        return Publishers.first(getResourcesCollection().deleteOne(new Document("_id", id)));
+    }
+
+    // Resource Versions
+
+    public CompletableFuture<UpdateResult> updateOrInsertVersion(ListedResource resource, ListedResourceVersion version) {
+        return upsert(getResourceVersionsCollection(), version.getId(), SpigetGson.RESOURCE_VERSION, version);
+    }
+
+    public CompletableFuture<BulkWriteSummary> updateOrInsertVersions(ListedResource resource, Collection<? extends ListedResourceVersion> versions) {
+        return bulkUpsert(getResourceVersionsCollection(), versions, SpigetGson.RESOURCE_VERSION, ListedResourceVersion::getId);
+    }
+
+    // Resource Updates
+
+    public CompletableFuture<UpdateResult> updateOrInsertUpdate(ListedResource resource, ResourceUpdate update) {
+        return upsert(getResourceUpdatesCollection(), update.getId(), SpigetGson.RESOURCE_UPDATE, update);
+    }
+
+    public CompletableFuture<BulkWriteSummary> updateOrInsertUpdates(ListedResource resource, Collection<? extends ResourceUpdate> updates) {
+        return bulkUpsert(getResourceUpdatesCollection(), updates, SpigetGson.RESOURCE_UPDATE, ResourceUpdate::getId);
+    }
+
+    // Resource Reviews
+
+    public CompletableFuture<UpdateResult> updateOrInsertReview(ListedResource resource, ResourceReview review) {
+        return upsert(getResourceReviewsCollection(), review.getId(), SpigetGson.RESOURCE_REVIEW, review);
+    }
+
+    public CompletableFuture<BulkWriteSummary> updateOrInsertReviews(ListedResource resource, Collection<? extends ResourceReview> reviews) {
+        return bulkUpsert(getResourceReviewsCollection(), reviews, SpigetGson.RESOURCE_REVIEW, ResourceReview::getId);
+    }
+
+    // Author
+
+    public CompletableFuture<Author> getAuthor(int id) {
+        return Publishers.first(getAuthorsCollection().withDocumentClass(Author.class).find(new Document("_id", id)).limit(1));
+    }
+
+    public CompletableFuture<LookupResult<Author>> getAuthors(int... ids) {
+        return findByIds(getAuthorsCollection(), ids, Author.class, Author::getId);
+    }
+
+    /**
+     * Streams the whole authors collection, in _id order
+     */
+    public Publisher<Author> streamAuthors(int batchSize) {
+        return getAuthorsCollection().withDocumentClass(Author.class).find().sort(new Document("_id", 1)).batchSize(batchSize);
+    }
+
+    public CompletableFuture<UpdateResult> updateAuthor(ListedAuthor author) {
+        long unix = System.currentTimeMillis() / 1000;
+        BsonDocument document = DatabaseParser.toBsonDocument(SpigetGson.AUTHOR, author);
+        return Publishers.first(getAuthorsCollection().updateOne(new Document("_id", author.getId()), new Document("$set", document
+                .append("fetch", new BsonDocument("latest", new BsonInt64(unix))))));
+    }
+
+    public CompletableFuture<Void> insertAuthor(ListedAuthor author) {
+        long unix = System.currentTimeMillis() / 1000;
+        BsonDocument document = DatabaseParser.toBsonDocument(SpigetGson.AUTHOR, author);
+        return Publishers.done(getAuthorsCollection().withDocumentClass(BsonDocument.class).insertOne(document
+                .append("fetch", new BsonDocument("latest", new BsonInt64(unix))
+                        .append("first", new BsonInt64(unix)))));
+    }
+
+    public CompletableFuture<UpdateResult> updateOrInsertAuthor(ListedAuthor author) {
+        return upsert(getAuthorsCollection(), author.getId(), SpigetGson.AUTHOR, author);
+    }
+
+    // Category
+
+    public CompletableFuture<Category> getCategory(int id) {
+        return Publishers.first(getCategoriesCollection().withDocumentClass(Category.class).find(new Document("_id", id)).limit(1));
+    }
+
+    public CompletableFuture<LookupResult<Category>> getCategories(int... ids) {
+        return findByIds(getCategoriesCollection(), ids, Category.class, Category::getId);
+    }
+
+    public CompletableFuture<UpdateResult> updateCategory(ListedCategory category) {
+        BsonDocument document = DatabaseParser.toBsonDocument(SpigetGson.CATEGORY, category);
+        return Publishers.first(getCategoriesCollection().updateOne(new Document("_id", category.getId()), new Document("$set", document)));
+    }
+
+    public CompletableFuture<Void> insertCategory(ListedCategory category) {
+        BsonDocument document = DatabaseParser.toBsonDocument(SpigetGson.CATEGORY, category);
+        return Publishers.done(getCategoriesCollection().withDocumentClass(BsonDocument.class).insertOne(document));
+    }
+
+    public CompletableFuture<UpdateResult> updateOrInsertCategory(ListedCategory category) {
+        return upsert(getCategoriesCollection(), category.getId(), SpigetGson.CATEGORY, category);
+    }
+
+    // Status
+
+    public CompletableFuture<UpdateResult> updateStatus(String key, Object value) {
+        return Publishers.first(getStatusCollection().updateOne(new Document("key", key), new Document("$set", new Document("key", key).append("value", value)), new UpdateOptions().upsert(true)));
+    }
+
+    /**
+     * Updates multiple status keys with unordered bulk writes
+     */
+    public CompletableFuture<BulkWriteSummary> updateStatuses(Map<String, ?> values) {
+        List<WriteModel<Document>> models = new ArrayList<>();
+        List<Object> keys = new ArrayList<>();
+        for (Map.Entry<String, ?> entry : values.entrySet()) {
+            models.add(new UpdateOneModel<>(new Document("key", entry.getKey()), new Document("$set", new Document("key", entry.getKey()).append("value", entry.getValue())), new UpdateOptions().upsert(true)));
+            keys.add(entry.getKey());
+        }
+        return bulkWrite(getStatusCollection(), models, keys);
+    }
+
+    public <T> CompletableFuture<T> getStatus(String key, T def) {
+        return Publishers.first(getStatusCollection().find(new Document("key", key)).limit(1))
+                .thenApply(document -> document == null ? def : (T) document.get("value"));
+    }
+
+    public CompletableFuture<UpdateResult> renameStatus(String fromKey, String toKey) {
+        return Publishers.first(getStatusCollection().updateOne(new Document("key", fromKey), new Document("$set", new Document("key", toKey))));
+    }
+
+    // Webhook
+
+    public CompletableFuture<Set<Webhook>> getWebhooks(String eventType) {
+        return Publishers.toList(streamWebhooks(eventType, 0)).thenApply(HashSet::new);
+    }
+
+    /**
+     * @param eventType event to filter by, or <code>null</code> for all webhooks
+     */
+    public Publisher<Webhook> streamWebhooks(String eventType, int batchSize) {
+        Bson filter = eventType == null ? new Document() : new Document("events", eventType);
+        return getWebhooksCollection().withDocumentClass(Webhook.class).find(filter).batchSize(batchSize);
+    }
+
+    public CompletableFuture<UpdateResult> updateWebhookStatus(Webhook webhook) {
+        return Publishers.first(getWebhooksCollection().updateOne(new Document("_id", webhook.id), webhookStatus(webhook)));
+    }
+
+    /**
+     * Persists the failure counters of many webhooks with unordered bulk writes
+     */
+    public CompletableFuture<BulkWriteSummary> updateWebhookStatuses(Collection<? extends Webhook> webhooks) {
+        List<WriteModel<Document>> models = new ArrayList<>();
+        List<Object> ids = new ArrayList<>();
+        for (Webhook webhook : webhooks) {
+            models.add(new UpdateOneModel<>(new Document("_id", webhook.id), webhookStatus(webhook)));
+            ids.add(webhook.id);
+        }
+        return bulkWrite(getWebhooksCollection(), models, ids);
+    }
+
+    private static Document webhookStatus(Webhook webhook) {
+        return new Document("$set",
+                new Document("failedConnections", webhook.failedConnections)
+                        .append("failStatus", webhook.failStatus)
+                        .append(WebhookRegistry.MODIFIED_FIELD, System.currentTimeMillis()));
+    }
+
+    public CompletableFuture<DeleteResult> deleteWebhook(Webhook webhook) {
+        return Publishers.first(getWebhooksCollection().deleteOne(new Document("_id", webhook.id)));
+    }
+
+    // Metrics
+
+    public CompletableFuture<Void> insertMetricsData(JsonObject data) {
+        return Publishers.done(getMetricsCollection().withDocumentClass(BsonDocument.class).insertOne(DatabaseParser.toBsonDocument(data)));
+    }
+
+    // Update Requests
+
+    public CompletableFuture<Set<UpdateRequest>> getUpdateRequests(int limit) {
+        return Publishers.toList(streamUpdateRequests(limit, 0)).thenApply(HashSet::new);
+    }
+
+    /**
+     * Oldest-first update requests
+     *
+     * @param limit maximum number of requests, or 0 for all of them
+     */
+    public Publisher<UpdateRequest> streamUpdateRequests(int limit, int batchSize) {
+        return getUpdateRequestsCollection().withDocumentClass(UpdateRequest.class).find().sort(new Document("requested", 1)).projection(Projections.fields(Projections.exclude("requested"))).limit(limit).batchSize(batchSize);
+    }
+
+    public CompletableFuture<DeleteResult> deleteUpdateRequest(UpdateRequest request) {
+        return Publishers.first(getUpdateRequestsCollection().deleteMany(new Document("requestedId", request.getRequestedId())));
+    }
+
+    /**
+     * @param timeout connect timeout in milliseconds, unless the {@link DatabaseClientSettings} specify one
+     */
+    public void connect(int timeout) {
+        if (mongoClient == null) {
+            log.info("Connecting to MongoDB (async)...");
+            MongoClientSettings.Builder builder = MongoClientSettings.builder()
+                    .applyConnectionString(new ConnectionString(this.url))
+                    .codecRegistry(DatabaseParser.SPIGET_CODEC_REGISTRY);
+            settings.applyTo(builder, timeout);
+            mongoClient = MongoClients.create(builder.build());
+        }
+    }
+
+    public void disconnect() {
+        if (mongoClient != null) {
+            mongoClient.close();
+        }
+    }
+
+    public MongoDatabase db() {
+        if (mongoDatabase == null) {
+            log.info("Initializing database '" + dbName + "'");
+            mongoDatabase = mongoClient.getDatabase(dbName).withCodecRegistry(DatabaseParser.SPIGET_CODEC_REGISTRY);
+        }
+        return mongoDatabase;
+    }
+
+    // Helpers
+
+    private CompletableFuture<UpdateResult> upsert(MongoCollection<Document> collection, int id, Gson gson, Object item) {
+        BsonDocument document = DatabaseParser.toBsonDocument(gson, item);
+        return Publishers.first(collection.updateOne(new Document("_id", id), new Document("$set", document), new UpdateOptions().upsert(true)));
+    }
+
+    private <T> CompletableFuture<BulkWriteSummary> bulkUpsert(MongoCollection<Document> collection, Collection<? extends T> items, Gson gson, ToIntFunction<T> idFunction) {
+        List<WriteModel<Document>> models = new ArrayList<>();
+        List<Object> ids = new ArrayList<>();
+        for (T item : items) {
+            int id = idFunction.applyAsInt(item);
+            models.add(new UpdateOneModel<>(new Document("_id", id), new Document("$set", DatabaseParser.toBsonDocument(gson, item)), new UpdateOptions().upsert(true)));
+            ids.add(id);
+        }
+        return bulkWrite(collection, models, ids);
+    }
+
+    /**
+     * Splits the models into chunks of {@link #getBulkChunkSize()}, sends them concurrently as unordered bulk writes and folds the results into one summary.
+     * Failures are recorded per item instead of failing the future.
+     */
+    <T> CompletableFuture<BulkWriteSummary> bulkWrite(MongoCollection<T> collection, List<? extends WriteModel<T>> models, List<?> ids) {
+        List<CompletableFuture<BulkWriteSummary>> futures = new ArrayList<>();
+        for (int i = 0; i < models.size(); i += bulkChunkSize) {
+            int end = Math.min(models.size(), i + bulkChunkSize);
+            futures.add(bulkWriteChunk(collection, new ArrayList<>(models.subList(i, end)), new ArrayList<>(ids.subList(i, end))));
+        }
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).thenApply(ignored -> {
+            BulkWriteSummary summary = new BulkWriteSummary();
+            for (CompletableFuture<BulkWriteSummary> future : futures) {
+                summary.merge(future.join());
+            }
+            return summary;
+        });
+    }
+
+    private <T> CompletableFuture<BulkWriteSummary> bulkWriteChunk(MongoCollection<T> collection, List<? extends WriteModel<T>> models, List<?> ids) {
+        return Publishers.first(collection.bulkWrite(models, new BulkWriteOptions().ordered(false))).handle((result, throwable) -> {
+            BulkWriteSummary summary = new BulkWriteSummary();
+            if (throwable == null) {
+                summary.add(result);
+                return summary;
+            }
+            Throwable cause = throwable instanceof CompletionException && throwable.getCause() != null ? throwable.getCause() : throwable;
+            if (cause instanceof MongoBulkWriteException) {
+                MongoBulkWriteException e = (MongoBulkWriteException) cause;
+                summary.add(e.getWriteResult());
+                for (BulkWriteError error : e.getWriteErrors()) {
+                    summary.addError(ids.get(error.getIndex()), error.getCode(), error.getMessage());
+                }
+                if (e.getWriteConcernError() != null) {
+                    log.warn("Write concern error in bulk write to " + collection.getNamespace() + ": " + e.getWriteConcernError().getMessage());
+                    summary.addWriteConcernError(e.getWriteConcernError());
+                }
+                return summary;
+            }
+            if (cause instanceof MongoException) {
+                MongoException e = (MongoException) cause;
+                Sentry.captureException(e);
+                log.log(Level.WARN, "Bulk write of " + models.size() + " operations to " + collection.getNamespace() + " failed", e);
+                summary.add(null);
+                for (Object id : ids) {
+                    summary.addError(id, e.getCode(), e.getMessage());
+                }
+                return summary;
+            }
+            throw new CompletionException(cause);
+        });
+    }
+
+    /**
+     * Looks up the ids in chunks of {@link #getLookupChunkSize()}, all chunks concurrently
+     */
+    <T> CompletableFuture<LookupResult<T>> findByIds(MongoCollection<Document> collection, int[] ids, Class<T> clazz, ToIntFunction<T> idFunction) {
+        return findByIds(ids, idFunction, chunk -> Publishers.toList(collection.withDocumentClass(clazz).find(Filters.in("_id", chunk))));
+    }
+
+    /**
+     * @param loader loads the entities of one chunk of ids
+     */
+    private <T> CompletableFuture<LookupResult<T>> findByIds(int[] ids, ToIntFunction<T> idFunction, Function<List<Integer>, CompletableFuture<List<T>>> loader) {
+        LinkedHashMap<Integer, T> entities = new LinkedHashMap<>();
+        for (int id : ids) {
+            entities.put(id, null);
+        }
+        List<Integer> distinct = new ArrayList<>(entities.keySet());
+        List<CompletableFuture<List<T>>> futures = new ArrayList<>();
+        for (int i = 0; i < distinct.size(); i += lookupChunkSize) {
+            List<Integer> chunk = distinct.subList(i, Math.min(distinct.size(), i + lookupChunkSize));
+            futures.add(loader.apply(new ArrayList<>(chunk)));
+        }
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).thenApply(ignored -> {
+            for (CompletableFuture<List<T>> future : futures) {
+                for (T entity : future.join()) {
+                    entities.put(idFunction.applyAsInt(entity), entity);
+                }
+            }
+            return new LookupResult<>(entities);
+        });
+    }
+
+    private MongoCollection<Document> collection(String name) {
+        return settings.configure(name, db().getCollection(name));
+    }
+
+    public MongoCollection<Document> getAuthorsCollection() {
+        return collection("authors");
+    }
+
+    public MongoCollection<Document> getResourcesCollection() {
+        return collection("resources");
+    }
+
+    public MongoCollection<Document> getResourceVersionsCollection() {
+        return collection("resource_versions");
+    }
+
+    public MongoCollection<Document> getResourceUpdatesCollection() {
+        return collection("resource_updates");
+    }
+
+    public MongoCollection<Document> getResourceReviewsCollection() {
+        return collection("resource_reviews");
+    }
+
+    public MongoCollection<Document> getCategoriesCollection() {
+        return collection("categories");
+    }
+
+    public MongoCollection<Document> getStatusCollection() {
+        return collection("status");
+    }
+
+    public MongoCollection<Document> getWebhooksCollection() {
+        return collection("webhooks");
+    }
+
+    public MongoCollection<Document> getMetricsCollection() {
+        return collection("metrics");
+    }
+
+    public MongoCollection<Document> getUpdateRequestsCollection() {
+        return collection("update_requests");
+    }
+
+}
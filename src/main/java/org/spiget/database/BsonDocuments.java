@@ -0,0 +1,394 @@
+package org.spiget.database;
+
+import org.bson.BsonArray;
+import org.bson.BsonDocument;
+import org.bson.BsonDouble;
+import org.bson.BsonInt32;
+import org.bson.BsonInt64;
+import org.bson.BsonNull;
+import org.bson.BsonValue;
+import org.bson.conversions.Bson;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * In-memory evaluation of the subset of MongoDB's query, update, projection and sort documents the client uses, for {@link InMemoryStorageBackend}
+ */
+class BsonDocuments {
+
+    /**
+     * Orders values like MongoDB does for the types the client stores: null/missing, numbers, strings, documents, arrays, others
+     */
+    static final Comparator<BsonValue> VALUE_ORDER = BsonDocuments::compare;
+
+    private BsonDocuments() {
+    }
+
+    static BsonDocument toDocument(Bson bson) {
+        if (bson == null) { return null; }
+        if (bson instanceof BsonDocument) { return (BsonDocument) bson; }
+        return bson.toBsonDocument(BsonDocument.class, DatabaseParser.SPIGET_CODEC_REGISTRY);
+    }
+
+    // Paths
+
+    static BsonValue get(BsonDocument document, String path) {
+        int dot = path.indexOf('.');
+        if (dot < 0) { return document.get(path); }
+        BsonValue child = document.get(path.substring(0, dot));
+        if (child == null || !child.isDocument()) { return null; }
+        return get(child.asDocument(), path.substring(dot + 1));
+    }
+
+    static void set(BsonDocument document, String path, BsonValue value) {
+        int dot = path.indexOf('.');
+        if (dot < 0) {
+            document.put(path, value);
+            return;
+        }
+        String name = path.substring(0, dot);
+        BsonValue child = document.get(name);
+        if (child == null || !child.isDocument()) {
+            child = new BsonDocument();
+            document.put(name, child);
+        }
+        set(child.asDocument(), path.substring(dot + 1), value);
+    }
+
+    static boolean remove(BsonDocument document, String path) {
+        int dot = path.indexOf('.');
+        if (dot < 0) { return document.remove(path) != null; }
+        BsonValue child = document.get(path.substring(0, dot));
+        if (child == null || !child.isDocument()) { return false; }
+        return remove(child.asDocument(), path.substring(dot + 1));
+    }
+
+    // Filters
+
+    static boolean matches(BsonDocument document, BsonDocument filter) {
+        if (filter == null) { return true; }
+        for (Map.Entry<String, BsonValue> entry : filter.entrySet()) {
+            String key = entry.getKey();
+            BsonValue condition = entry.getValue();
+            switch (key) {
+                case "$and":
+                    for (BsonValue part : condition.asArray()) {
+                        if (!matches(document, part.asDocument())) { return false; }
+                    }
+                    break;
+                case "$or":
+                    boolean any = false;
+                    for (BsonValue part : condition.asArray()) {
+                        if (matches(document, part.asDocument())) {
+                            any = true;
+                            break;
+                        }
+                    }
+                    if (!any) { return false; }
+                    break;
+                default:
+                    if (!matchesField(get(document, key), condition)) { return false; }
+            }
+        }
+        return true;
+    }
+
+    private static boolean matchesField(BsonValue value, BsonValue condition) {
+        if (condition.isDocument() && isOperatorDocument(condition.asDocument())) {
+            for (Map.Entry<String, BsonValue> operator : condition.asDocument().entrySet()) {
+                if (!matchesOperator(value, operator.getKey(), operator.getValue())) { return false; }
+            }
+            return true;
+        }
+        return matchesOperator(value, "$eq", condition);
+    }
+
+    private static boolean isOperatorDocument(BsonDocument document) {
+        return !document.isEmpty() && document.getFirstKey().startsWith("$");
+    }
+
+    private static boolean matchesOperator(BsonValue value, String operator, BsonValue operand) {
+        switch (operator) {
+            case "$exists":
+                return (value != null) == operand.asBoolean().getValue();
+            case "$ne":
+                return !matchesOperator(value, "$eq", operand);
+            case "$in":
+                for (BsonValue candidate : operand.asArray()) {
+                    if (matchesOperator(value, "$eq", candidate)) { return true; }
+                }
+                return false;
+            case "$eq":
+            case "$gt":
+            case "$gte":
+            case "$lt":
+            case "$lte":
+                // Like MongoDB, a condition on an array field matches if any element matches
+                if (value != null && value.isArray() && !operand.isArray()) {
+                    for (BsonValue element : value.asArray()) {
+                        if (compareOperator(element, operator, operand)) { return true; }
+                    }
+                    return false;
+                }
+                return compareOperator(value, operator, operand);
+            default:
+                throw new UnsupportedOperationException("Query operator " + operator + " is not supported by the in-memory storage");
+        }
+    }
+
+    private static boolean compareOperator(BsonValue value, String operator, BsonValue operand) {
+        if (value == null) { value = BsonNull.VALUE; }
+        if (!"$eq".equals(operator) && typeClass(value) != typeClass(operand)) {
+            // Range conditions only match values of the same type class
+            return false;
+        }
+        int compare = compare(value, operand);
+        switch (operator) {
+            case "$eq":
+                return compare == 0;
+            case "$gt":
+                return compare > 0;
+            case "$gte":
+                return compare >= 0;
+            case "$lt":
+                return compare < 0;
+            default:
+                return compare <= 0;
+        }
+    }
+
+    /**
+     * @return the _id values the filter is restricted to, or <code>null</code> if it isn't a plain _id equality or $in
+     */
+    static List<BsonValue> idCandidates(BsonDocument filter) {
+        return candidates(filter, "_id");
+    }
+
+    /**
+     * @return the values a top-level equality or $in of the filter restricts the field to, or <code>null</code>
+     */
+    static List<BsonValue> candidates(BsonDocument filter, String field) {
+        if (filter == null) { return null; }
+        BsonValue condition = filter.get(field);
+        if (condition == null) {
+            BsonValue and = filter.get("$and");
+            if (and != null) {
+                for (BsonValue part : and.asArray()) {
+                    List<BsonValue> candidates = candidates(part.asDocument(), field);
+                    if (candidates != null) { return candidates; }
+                }
+            }
+            return null;
+        }
+        List<BsonValue> values = new ArrayList<>();
+        if (condition.isDocument() && isOperatorDocument(condition.asDocument())) {
+            BsonDocument operators = condition.asDocument();
+            if (operators.containsKey("$eq")) {
+                values.add(operators.get("$eq"));
+            } else if (operators.containsKey("$in")) {
+                values.addAll(operators.getArray("$in").getValues());
+            } else {
+                return null;
+            }
+        } else {
+            values.add(condition);
+        }
+        return values;
+    }
+
+    // Updates
+
+    /**
+     * Applies the update operators to the document
+     *
+     * @param insert whether the document is being upserted, to also apply $setOnInsert
+     */
+    static void applyUpdate(BsonDocument document, BsonDocument update, boolean insert) {
+        for (Map.Entry<String, BsonValue> entry : update.entrySet()) {
+            BsonDocument fields = entry.getValue().asDocument();
+            switch (entry.getKey()) {
+                case "$set":
+                    for (Map.Entry<String, BsonValue> field : fields.entrySet()) {
+                        set(document, field.getKey(), field.getValue().clone());
+                    }
+                    break;
+                case "$setOnInsert":
+                    if (insert) {
+                        for (Map.Entry<String, BsonValue> field : fields.entrySet()) {
+                            set(document, field.getKey(), field.getValue().clone());
+                        }
+                    }
+                    break;
+                case "$unset":
+                    for (String field : fields.keySet()) {
+                        remove(document, field);
+                    }
+                    break;
+                case "$inc":
+                    for (Map.Entry<String, BsonValue> field : fields.entrySet()) {
+                        set(document, field.getKey(), increment(get(document, field.getKey()), field.getValue()));
+                    }
+                    break;
+                default:
+                    throw new UnsupportedOperationException("Update operator " + entry.getKey() + " is not supported by the in-memory storage");
+            }
+        }
+    }
+
+    private static BsonValue increment(BsonValue value, BsonValue by) {
+        if (value == null) { return by; }
+        if (value.isDouble() || by.isDouble()) {
+            return new BsonDouble(value.asNumber().doubleValue() + by.asNumber().doubleValue());
+        }
+        if (value.isInt64() || by.isInt64()) {
+            return new BsonInt64(value.asNumber().longValue() + by.asNumber().longValue());
+        }
+        return new BsonInt32(value.asNumber().intValue() + by.asNumber().intValue());
+    }
+
+    /**
+     * Document an upsert starts from: the top-level equality conditions of the filter
+     */
+    static BsonDocument upsertBase(BsonDocument filter) {
+        BsonDocument document = new BsonDocument();
+        if (filter == null) { return document; }
+        for (Map.Entry<String, BsonValue> entry : filter.entrySet()) {
+            if (entry.getKey().startsWith("$")) { continue; }
+            BsonValue condition = entry.getValue();
+            if (condition.isDocument() && isOperatorDocument(condition.asDocument())) {
+                if (condition.asDocument().containsKey("$eq")) {
+                    set(document, entry.getKey(), condition.asDocument().get("$eq").clone());
+                }
+                continue;
+            }
+            set(document, entry.getKey(), condition.clone());
+        }
+        return document;
+    }
+
+    // Projections
+
+    /**
+     * @return a copy of the document with only the projected fields
+     */
+    static BsonDocument project(BsonDocument document, BsonDocument projection) {
+        if (projection == null || projection.isEmpty()) { return document.clone(); }
+        boolean inclusion = false;
+        for (Map.Entry<String, BsonValue> entry : projection.entrySet()) {
+            if (!"_id".equals(entry.getKey()) && isTrue(entry.getValue())) {
+                inclusion = true;
+                break;
+            }
+        }
+        if (inclusion) {
+            BsonDocument projected = new BsonDocument();
+            if (!projection.containsKey("_id") || isTrue(projection.get("_id"))) {
+                BsonValue id = document.get("_id");
+                if (id != null) { projected.put("_id", id.clone()); }
+            }
+            for (Map.Entry<String, BsonValue> entry : projection.entrySet()) {
+                if (!isTrue(entry.getValue())) { continue; }
+                BsonValue value = get(document, entry.getKey());
+                if (value != null) { set(projected, entry.getKey(), value.clone()); }
+            }
+            return projected;
+        }
+        BsonDocument projected = document.clone();
+        for (String field : projection.keySet()) {
+            remove(projected, field);
+        }
+        return projected;
+    }
+
+    private static boolean isTrue(BsonValue value) {
+        if (value.isBoolean()) { return value.asBoolean().getValue(); }
+        return !value.isNumber() || value.asNumber().intValue() != 0;
+    }
+
+    // Sorting
+
+    static Comparator<BsonDocument> sortOrder(BsonDocument sort) {
+        Comparator<BsonDocument> comparator = (a, b) -> 0;
+        for (Map.Entry<String, BsonValue> entry : sort.entrySet()) {
+            String field = entry.getKey();
+            boolean descending = entry.getValue().asNumber().intValue() < 0;
+            Comparator<BsonDocument> byField = (a, b) -> compare(orNull(get(a, field)), orNull(get(b, field)));
+            comparator = comparator.thenComparing(descending ? byField.reversed() : byField);
+        }
+        return comparator;
+    }
+
+    private static BsonValue orNull(BsonValue value) {
+        return value == null ? BsonNull.VALUE : value;
+    }
+
+    static int compare(BsonValue a, BsonValue b) {
+        int typeA = typeClass(a);
+        int typeB = typeClass(b);
+        if (typeA != typeB) { return Integer.compare(typeA, typeB); }
+        switch (typeA) {
+            case 0:
+                return 0;
+            case 1:
+                if (a.isDouble() || b.isDouble() || a.isDecimal128() || b.isDecimal128()) {
+                    return Double.compare(a.asNumber().doubleValue(), b.asNumber().doubleValue());
+                }
+                return Long.compare(a.asNumber().longValue(), b.asNumber().longValue());
+            case 2:
+                return a.asString().getValue().compareTo(b.asString().getValue());
+            case 6:
+                return Boolean.compare(a.asBoolean().getValue(), b.asBoolean().getValue());
+            case 7:
+                return Long.compare(a.asDateTime().getValue(), b.asDateTime().getValue());
+            default:
+                return a.equals(b) ? 0 : Integer.compare(a.hashCode(), b.hashCode());
+        }
+    }
+
+    private static int typeClass(BsonValue value) {
+        if (value == null || value.isNull()) { return 0; }
+        if (value.isNumber() || value.isDecimal128()) { return 1; }
+        if (value.isString()) { return 2; }
+        if (value.isDocument()) { return 3; }
+        if (value.isArray()) { return 4; }
+        if (value.isObjectId()) { return 5; }
+        if (value.isBoolean()) { return 6; }
+        if (value.isDateTime()) { return 7; }
+        return 8;
+    }
+
+    /**
+     * Key under which the value is kept in hash indexes, so that e.g. Int32 1 and Int64 1 are the same key
+     */
+    static Object indexKey(BsonValue value) {
+        if (value == null || value.isNull()) { return BsonNull.VALUE; }
+        if (value.isInt32() || value.isInt64()) { return value.asNumber().longValue(); }
+        if (value.isDouble()) {
+            double d = value.asDouble().getValue();
+            if (d == Math.rint(d) && !Double.isInfinite(d)) { return (long) d; }
+            return d;
+        }
+        if (value.isString()) { return value.asString().getValue(); }
+        return value;
+    }
+
+    /**
+     * @return the index keys of the value: the elements of an array, otherwise the value itself
+     */
+    static List<Object> indexKeys(BsonValue value) {
+        List<Object> keys = new ArrayList<>();
+        if (value != null && value.isArray()) {
+            for (BsonValue element : (BsonArray) value) {
+                keys.add(indexKey(element));
+            }
+            if (keys.isEmpty()) { keys.add(BsonNull.VALUE); }
+        } else {
+            keys.add(indexKey(value));
+        }
+        return keys;
+    }
+
+}
@@ -0,0 +1,174 @@
+package org.spiget.database;
+
+import com.google.gson.stream.JsonWriter;
+import org.bson.BsonWriter;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.math.BigInteger;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link JsonWriter} which streams Gson's output straight onto a {@link BsonWriter}, without building a JSON string in between.
+ * Numbers are mapped the same way {@link org.bson.Document#parse(String)} maps them, so documents written this way are identical to the ones produced by {@link DatabaseParser#toDocument(com.google.gson.JsonElement)}.
+ */
+class BsonJsonWriter extends JsonWriter {
+
+    private static final Writer UNWRITABLE_WRITER = new Writer() {
+        @Override
+        public void write(char[] buffer, int offset, int count) {
+            throw new AssertionError();
+        }
+
+        @Override
+        public void flush() {
+            throw new AssertionError();
+        }
+
+        @Override
+        public void close() {
+            throw new AssertionError();
+        }
+    };
+
+    private final BsonWriter writer;
+    private       String     pendingName;
+
+    BsonJsonWriter(BsonWriter writer) {
+        super(UNWRITABLE_WRITER);
+        this.writer = writer;
+    }
+
+    private void writePendingName() {
+        if (pendingName != null) {
+            writer.writeName(pendingName);
+            pendingName = null;
+        }
+    }
+
+    @Override
+    public JsonWriter beginArray() throws IOException {
+        writePendingName();
+        writer.writeStartArray();
+        return this;
+    }
+
+    @Override
+    public JsonWriter endArray() throws IOException {
+        writer.writeEndArray();
+        return this;
+    }
+
+    @Override
+    public JsonWriter beginObject() throws IOException {
+        writePendingName();
+        writer.writeStartDocument();
+        return this;
+    }
+
+    @Override
+    public JsonWriter endObject() throws IOException {
+        writer.writeEndDocument();
+        return this;
+    }
+
+    @Override
+    public JsonWriter name(String name) throws IOException {
+        if (name == null) { throw new NullPointerException("name == null"); }
+        if (pendingName != null) { throw new IllegalStateException("Name '" + pendingName + "' has no value"); }
+        pendingName = name;
+        return this;
+    }
+
+    @Override
+    public JsonWriter value(String value) throws IOException {
+        if (value == null) { return nullValue(); }
+        writePendingName();
+        writer.writeString(value);
+        return this;
+    }
+
+    @Override
+    public JsonWriter nullValue() throws IOException {
+        if (pendingName != null && !getSerializeNulls()) {
+            // Same as the string writer: drop the name together with the null value
+            pendingName = null;
+            return this;
+        }
+        writePendingName();
+        writer.writeNull();
+        return this;
+    }
+
+    @Override
+    public JsonWriter value(boolean value) throws IOException {
+        writePendingName();
+        writer.writeBoolean(value);
+        return this;
+    }
+
+    @Override
+    public JsonWriter value(Boolean value) throws IOException {
+        if (value == null) { return nullValue(); }
+        return value(value.booleanValue());
+    }
+
+    @Override
+    public JsonWriter value(double value) throws IOException {
+        writePendingName();
+        writer.writeDouble(value);
+        return this;
+    }
+
+    @Override
+    public JsonWriter value(long value) throws IOException {
+        writePendingName();
+        writeInteger(value);
+        return this;
+    }
+
+    @Override
+    public JsonWriter value(Number value) throws IOException {
+        if (value == null) { return nullValue(); }
+        writePendingName();
+        if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte || value instanceof AtomicInteger || value instanceof AtomicLong) {
+            writeInteger(value.longValue());
+        } else if (value instanceof Double) {
+            writer.writeDouble(value.doubleValue());
+        } else {
+            // Float, BigDecimal, BigInteger, LazilyParsedNumber, ...: use the textual form, like the JSON round trip did
+            String string = value.toString();
+            if (string.indexOf('.') != -1 || string.indexOf('e') != -1 || string.indexOf('E') != -1) {
+                writer.writeDouble(Double.parseDouble(string));
+            } else {
+                BigInteger integer = new BigInteger(string);
+                if (integer.bitLength() < 64) {
+                    writeInteger(integer.longValue());
+                } else {
+                    writer.writeDouble(integer.doubleValue());
+                }
+            }
+        }
+        return this;
+    }
+
+    private void writeInteger(long value) {
+        if (value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE) {
+            writer.writeInt32((int) value);
+        } else {
+            writer.writeInt64(value);
+        }
+    }
+
+    @Override
+    public void flush() {
+        writer.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (pendingName != null) { throw new IOException("Incomplete document"); }
+    }
+
+}
@@ -0,0 +1,161 @@
+package org.spiget.database;
+
+import com.mongodb.bulk.BulkWriteResult;
+import com.mongodb.bulk.WriteConcernError;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Aggregated result of a chunked bulk write
+ */
+public class BulkWriteSummary {
+
+    private int matchedCount;
+    private int modifiedCount;
+    private int upsertedCount;
+    private int insertedCount;
+    private int deletedCount;
+    private int chunkCount;
+
+    private final List<ItemError>         errors             = new ArrayList<>();
+    private final List<WriteConcernError> writeConcernErrors = new ArrayList<>();
+
+    void add(BulkWriteResult result) {
+        chunkCount++;
+        if (result == null || !result.wasAcknowledged()) { return; }
+        matchedCount += result.getMatchedCount();
+        modifiedCount += result.getModifiedCount();
+        upsertedCount += result.getUpserts().size();
+        insertedCount += result.getInsertedCount();
+        deletedCount += result.getDeletedCount();
+    }
+
+    /**
+     * Adds the counts of one bulk write which didn't go through the driver
+     */
+    void add(int matched, int modified, int upserted, int inserted, int deleted) {
+        chunkCount++;
+        matchedCount += matched;
+        modifiedCount += modified;
+        upsertedCount += upserted;
+        insertedCount += inserted;
+        deletedCount += deleted;
+    }
+
+    void addError(Object id, int code, String message) {
+        errors.add(new ItemError(id, code, message));
+    }
+
+    void addWriteConcernError(WriteConcernError error) {
+        writeConcernErrors.add(error);
+    }
+
+    void merge(BulkWriteSummary other) {
+        matchedCount += other.matchedCount;
+        modifiedCount += other.modifiedCount;
+        upsertedCount += other.upsertedCount;
+        insertedCount += other.insertedCount;
+        deletedCount += other.deletedCount;
+        chunkCount += other.chunkCount;
+        errors.addAll(other.errors);
+        writeConcernErrors.addAll(other.writeConcernErrors);
+    }
+
+    public int getMatchedCount() {
+        return matchedCount;
+    }
+
+    public int getModifiedCount() {
+        return modifiedCount;
+    }
+
+    public int getUpsertedCount() {
+        return upsertedCount;
+    }
+
+    public int getInsertedCount() {
+        return insertedCount;
+    }
+
+    public int getDeletedCount() {
+        return deletedCount;
+    }
+
+    /**
+     * @return number of bulkWrite round trips that were sent
+     */
+    public int getChunkCount() {
+        return chunkCount;
+    }
+
+    /**
+     * @return <code>true</code> if any item failed, or any chunk was not confirmed with the requested write concern
+     */
+    public boolean hasErrors() {
+        return !errors.isEmpty() || !writeConcernErrors.isEmpty();
+    }
+
+    public List<ItemError> getErrors() {
+        return Collections.unmodifiableList(errors);
+    }
+
+    /**
+     * @return one error per chunk whose writes were applied, but not confirmed with the requested write concern (e.g. not replicated in time)
+     */
+    public List<WriteConcernError> getWriteConcernErrors() {
+        return Collections.unmodifiableList(writeConcernErrors);
+    }
+
+    @Override
+    public String toString() {
+        return "BulkWriteSummary{" +
+                "matched=" + matchedCount +
+                ", modified=" + modifiedCount +
+                ", upserted=" + upsertedCount +
+                ", inserted=" + insertedCount +
+                ", deleted=" + deletedCount +
+                ", chunks=" + chunkCount +
+                ", errors=" + errors.size() +
+                ", writeConcernErrors=" + writeConcernErrors.size() +
+                '}';
+    }
+
+    /**
+     * A single item which could not be written
+     */
+    public static class ItemError {
+
+        private final Object id;
+        private final int    code;
+        private final String message;
+
+        ItemError(Object id, int code, String message) {
+            this.id = id;
+            this.code = code;
+            this.message = message;
+        }
+
+        /**
+         * @return the _id of the failed item
+         */
+        public Object getId() {
+            return id;
+        }
+
+        public int getCode() {
+            return code;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+
+        @Override
+        public String toString() {
+            return "ItemError{id=" + id + ", code=" + code + ", message='" + message + "'}";
+        }
+    }
+
+}
@@ -0,0 +1,220 @@
+package org.spiget.database;
+
+import com.mongodb.event.CommandFailedEvent;
+import com.mongodb.event.CommandListener;
+import com.mongodb.event.CommandSucceededEvent;
+import io.sentry.Sentry;
+import lombok.extern.log4j.Log4j2;
+import org.apache.logging.log4j.Level;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.Closeable;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Latency histograms and counters for the operations of a {@link DatabaseClient}.
+ * <p>
+ * Each operation's time is split into serialization (Gson / codec work on the calling thread) and driver time (everything else, including the round trip).
+ * The driver's command and connection pool events are tracked as well, so the time spent waiting for a pooled connection shows up separately.
+ * Everything can be exposed through JMX ({@link #registerMBeans()}) and pushed to an {@link InstrumentationReporter}.
+ */
+@Log4j2
+public class ClientInstrumentation implements Closeable {
+
+    // Serialization time of the operation running on the current thread, or null if none is being instrumented
+    private static final ThreadLocal<long[]> CURRENT_SERIALIZATION = new ThreadLocal<>();
+
+    private final String name;
+
+    private final Map<String, OperationStats>   operations     = new ConcurrentSkipListMap<>();
+    private final Map<String, LatencyHistogram> commands       = new ConcurrentSkipListMap<>();
+    private final ConnectionPoolStats           connectionPool = new ConnectionPoolStats();
+
+    private final CommandListener commandListener = new CommandListener() {
+        @Override
+        public void commandSucceeded(CommandSucceededEvent event) {
+            command(event.getCommandName()).record(event.getElapsedTime(TimeUnit.NANOSECONDS));
+        }
+
+        @Override
+        public void commandFailed(CommandFailedEvent event) {
+            command(event.getCommandName()).record(event.getElapsedTime(TimeUnit.NANOSECONDS));
+        }
+    };
+
+    private          MBeanServer              mBeanServer;
+    private final    List<ObjectName>         registeredBeans = Collections.synchronizedList(new ArrayList<>());
+    private          ScheduledExecutorService reporterExecutor;
+
+    /**
+     * @param name name of the client, used in the JMX object names
+     */
+    public ClientInstrumentation(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return stats of every operation which has been called so far, by name
+     */
+    public Map<String, OperationStats> getOperations() {
+        return Collections.unmodifiableMap(operations);
+    }
+
+    public OperationStats getOperation(String operation) {
+        return operations.get(operation);
+    }
+
+    /**
+     * @return round trip time of the wire commands (find, update, insert, ...) as measured by the driver
+     */
+    public Map<String, LatencyHistogram> getCommands() {
+        return Collections.unmodifiableMap(commands);
+    }
+
+    public ConnectionPoolStats getConnectionPool() {
+        return connectionPool;
+    }
+
+    public CommandListener getCommandListener() {
+        return commandListener;
+    }
+
+    <T> T instrument(String operation, Supplier<T> supplier) {
+        long[] previous = CURRENT_SERIALIZATION.get();
+        long[] serialization = new long[1];
+        CURRENT_SERIALIZATION.set(serialization);
+        boolean failed = true;
+        long start = System.nanoTime();
+        try {
+            T result = supplier.get();
+            failed = false;
+            return result;
+        } finally {
+            long elapsed = System.nanoTime() - start;
+            CURRENT_SERIALIZATION.set(previous);
+            if (previous != null) {
+                previous[0] += serialization[0];
+            }
+            operation(operation).record(elapsed, Math.min(serialization[0], elapsed), failed);
+        }
+    }
+
+    /**
+     * @return start time to pass to {@link #serializationEnd(long)}, or 0 if the current thread isn't running an instrumented operation
+     */
+    static long serializationStart() {
+        return CURRENT_SERIALIZATION.get() == null ? 0 : System.nanoTime();
+    }
+
+    static void serializationEnd(long start) {
+        if (start == 0) { return; }
+        long[] serialization = CURRENT_SERIALIZATION.get();
+        if (serialization != null) {
+            serialization[0] += System.nanoTime() - start;
+        }
+    }
+
+    private OperationStats operation(String operation) {
+        OperationStats stats = operations.get(operation);
+        if (stats == null) {
+            OperationStats created = new OperationStats(operation);
+            stats = operations.putIfAbsent(operation, created);
+            if (stats == null) {
+                stats = created;
+                register(stats);
+            }
+        }
+        return stats;
+    }
+
+    private LatencyHistogram command(String command) {
+        LatencyHistogram histogram = commands.get(command);
+        if (histogram == null) {
+            histogram = commands.computeIfAbsent(command, k -> new LatencyHistogram());
+        }
+        return histogram;
+    }
+
+    /**
+     * Registers an MBean for the connection pool and one for each operation (including the ones called later) with the platform MBean server
+     */
+    public synchronized void registerMBeans() {
+        if (mBeanServer != null) { return; }
+        mBeanServer = ManagementFactory.getPlatformMBeanServer();
+        register(connectionPool, "ConnectionPool");
+        for (OperationStats stats : operations.values()) {
+            register(stats);
+        }
+    }
+
+    private void register(OperationStats stats) {
+        register(stats, "Operation,operation=" + stats.getName());
+    }
+
+    private synchronized void register(Object bean, String type) {
+        if (mBeanServer == null) { return; }
+        try {
+            ObjectName objectName = new ObjectName("org.spiget.database:type=" + type + ",client=" + ObjectName.quote(name));
+            if (!mBeanServer.isRegistered(objectName)) {
+                mBeanServer.registerMBean(bean, objectName);
+                registeredBeans.add(objectName);
+            }
+        } catch (JMException e) {
+            log.log(Level.WARN, "Failed to register MBean " + type, e);
+        }
+    }
+
+    /**
+     * Calls the reporter every <code>period</code> from a background thread
+     */
+    public synchronized void startReporting(InstrumentationReporter reporter, long period, TimeUnit unit) {
+        if (reporterExecutor == null) {
+            reporterExecutor = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("spiget-instrumentation"));
+        }
+        reporterExecutor.scheduleAtFixedRate(() -> {
+            try {
+                reporter.report(this);
+            } catch (Exception e) {
+                Sentry.captureException(e);
+                log.log(Level.WARN, "InstrumentationReporter failed", e);
+            }
+        }, period, period, unit);
+    }
+
+    @Override
+    public synchronized void close() {
+        if (reporterExecutor != null) {
+            reporterExecutor.shutdown();
+            reporterExecutor = null;
+        }
+        if (mBeanServer != null) {
+            synchronized (registeredBeans) {
+                for (ObjectName objectName : registeredBeans) {
+                    try {
+                        mBeanServer.unregisterMBean(objectName);
+                    } catch (JMException ignored) {
+                    }
+                }
+                registeredBeans.clear();
+            }
+            mBeanServer = null;
+        }
+    }
+
+}
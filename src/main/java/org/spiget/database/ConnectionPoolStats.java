@@ -0,0 +1,116 @@
+package org.spiget.database;
+
+import com.mongodb.event.ConnectionCheckOutFailedEvent;
+import com.mongodb.event.ConnectionCheckOutStartedEvent;
+import com.mongodb.event.ConnectionCheckedInEvent;
+import com.mongodb.event.ConnectionCheckedOutEvent;
+import com.mongodb.event.ConnectionClosedEvent;
+import com.mongodb.event.ConnectionCreatedEvent;
+import com.mongodb.event.ConnectionPoolListener;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Tracks how long operations wait for a pooled connection.
+ * The sync driver checks connections out on the calling thread, so check-out start and end are matched per thread.
+ */
+public class ConnectionPoolStats implements ConnectionPoolListener, ConnectionPoolStatsMBean {
+
+    private final ThreadLocal<long[]> checkOutStart = ThreadLocal.withInitial(() -> new long[1]);
+
+    private final LatencyHistogram wait      = new LatencyHistogram();
+    private final LongAdder        checkedOut = new LongAdder();
+    private final LongAdder        open       = new LongAdder();
+    private final LongAdder        failures   = new LongAdder();
+
+    @Override
+    public void connectionCheckOutStarted(ConnectionCheckOutStartedEvent event) {
+        checkOutStart.get()[0] = System.nanoTime();
+    }
+
+    @Override
+    public void connectionCheckedOut(ConnectionCheckedOutEvent event) {
+        checkedOut.increment();
+        recordWait();
+    }
+
+    @Override
+    public void connectionCheckOutFailed(ConnectionCheckOutFailedEvent event) {
+        failures.increment();
+        recordWait();
+    }
+
+    private void recordWait() {
+        long[] start = checkOutStart.get();
+        if (start[0] != 0) {
+            wait.record(System.nanoTime() - start[0]);
+            start[0] = 0;
+        }
+    }
+
+    @Override
+    public void connectionCheckedIn(ConnectionCheckedInEvent event) {
+        checkedOut.decrement();
+    }
+
+    @Override
+    public void connectionCreated(ConnectionCreatedEvent event) {
+        open.increment();
+    }
+
+    @Override
+    public void connectionClosed(ConnectionClosedEvent event) {
+        open.decrement();
+    }
+
+    public LatencyHistogram getWait() {
+        return wait;
+    }
+
+    @Override
+    public long getCheckedOutConnections() {
+        return checkedOut.sum();
+    }
+
+    @Override
+    public long getOpenConnections() {
+        return open.sum();
+    }
+
+    @Override
+    public long getCheckOutCount() {
+        return wait.getCount();
+    }
+
+    @Override
+    public long getCheckOutFailureCount() {
+        return failures.sum();
+    }
+
+    @Override
+    public double getWaitMeanMicros() {
+        return wait.getMean() / 1000;
+    }
+
+    @Override
+    public long getWaitP99Micros() {
+        return wait.getPercentile(99) / 1000;
+    }
+
+    @Override
+    public long getWaitMaxMicros() {
+        return wait.getMax() / 1000;
+    }
+
+    @Override
+    public void reset() {
+        wait.reset();
+        failures.reset();
+    }
+
+    @Override
+    public String toString() {
+        return "ConnectionPool{open=" + getOpenConnections() + ", checkedOut=" + getCheckedOutConnections() + ", checkOuts=" + getCheckOutCount() + ", failures=" + getCheckOutFailureCount() + ", wait p99=" + getWaitP99Micros() + "µs, wait max=" + getWaitMaxMicros() + "µs}";
+    }
+
+}
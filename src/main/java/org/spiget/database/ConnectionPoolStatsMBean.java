@@ -0,0 +1,24 @@
+package org.spiget.database;
+
+/**
+ * JMX view of {@link ConnectionPoolStats}. Durations are in microseconds.
+ */
+public interface ConnectionPoolStatsMBean {
+
+    long getCheckedOutConnections();
+
+    long getOpenConnections();
+
+    long getCheckOutCount();
+
+    long getCheckOutFailureCount();
+
+    double getWaitMeanMicros();
+
+    long getWaitP99Micros();
+
+    long getWaitMaxMicros();
+
+    void reset();
+
+}
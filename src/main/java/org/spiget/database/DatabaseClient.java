@@ -1,16 +1,35 @@
 package org.spiget.database;
 
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonSyntaxException;
+import com.mongodb.ConnectionString;
+import com.mongodb.MongoClientSettings;
+import com.mongodb.MongoCommandException;
 import com.mongodb.MongoCredential;
+import com.mongodb.MongoException;
+import com.mongodb.ServerAddress;
 import com.mongodb.client.*;
+import com.mongodb.client.model.Filters;
 import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.UpdateOneModel;
 import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.WriteModel;
 import com.mongodb.client.result.UpdateResult;
 import io.sentry.Sentry;
 import lombok.extern.log4j.Log4j2;
 import org.apache.logging.log4j.Level;
+import org.bson.BsonDocument;
+import org.bson.BsonDocumentReader;
+import org.bson.BsonInt64;
+import org.bson.BsonString;
 import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.BsonDocumentCodec;
+import org.bson.codecs.Codec;
+import org.bson.codecs.DecoderContext;
+import org.bson.conversions.Bson;
 import org.spiget.data.UpdateRequest;
 import org.spiget.data.author.Author;
 import org.spiget.data.author.ListedAuthor;
@@ -21,13 +40,30 @@ import org.spiget.data.resource.Resource;
 import org.spiget.data.resource.ResourceReview;
 import org.spiget.data.resource.update.ResourceUpdate;
 import org.spiget.data.resource.version.ListedResourceVersion;
+import org.spiget.data.resource.version.ResourceVersion;
 import org.spiget.data.webhook.Webhook;
 
 import java.io.IOException;
 import java.lang.management.ManagementFactory;
 import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.function.ToIntFunction;
 
 @Log4j2
 public class DatabaseClient {
@@ -39,14 +75,61 @@ public class DatabaseClient {
     private int port;
     private MongoCredential credential;
 
+    private DatabaseClientSettings settings = DatabaseClientSettings.DEFAULT;
+
     private MongoClient mongoClient;
     private MongoDatabase mongoDatabase;
 
+    private StorageBackend storage;
+
+    private boolean useCodecs = true;
+    private int bulkChunkSize = 500;
+
+    private StatusWriteBuffer statusWriteBuffer;
+
+    private EntityCache<Resource> resourceCache;
+    private EntityCache<Author> authorCache;
+    private EntityCache<Category> categoryCache;
+
+    private EntityFingerprints resourceFingerprints;
+    private EntityFingerprints authorFingerprints;
+
+    private PayloadStore payloadStore;
+    // Reads put payloads back whether offloading is enabled or not, since other clients may have offloaded them
+    private final PayloadStore payloadReader = new PayloadStore(() -> store("resource_payloads"), Integer.MAX_VALUE, Collections.emptyList());
+
+    private int lookupChunkSize = 200;
+    private int lookupParallelism = 4;
+    private ExecutorService lookupExecutor;
+
+    private volatile WebhookRegistry webhookRegistry;
+
+    private volatile MetricsSink metricsSink;
+
+    private ClientInstrumentation instrumentation;
+
+    private boolean ensureIndexesOnConnect;
+
     public DatabaseClient(String url, String dbName) {
         this.url = url;
         this.dbName = dbName;
     }
 
+    public DatabaseClient(String url, String dbName, DatabaseClientSettings settings) {
+        this.url = url;
+        this.dbName = dbName;
+        this.settings = settings;
+    }
+
+    /**
+     * Client on another storage backend than MongoDB, e.g. the {@link InMemoryStorageBackend}. {@link #connect(int)} isn't required.
+     * Features which rely on MongoDB itself (streams, the webhook registry's change stream, update request leases, the metrics sink, indexes) aren't available.
+     */
+    public DatabaseClient(StorageBackend storage, String dbName) {
+        this.storage = storage;
+        this.dbName = dbName;
+    }
+
     @Deprecated
     public DatabaseClient(String dbName, String host, int port, String user, char[] pass, String authDatabase) {
         this.dbName = dbName;
@@ -55,6 +138,289 @@ public class DatabaseClient {
         this.credential = MongoCredential.createScramSha1Credential(user, authDatabase, pass);
     }
 
+    public DatabaseClientSettings getSettings() {
+        return settings;
+    }
+
+    /**
+     * Toggle between the native BSON codecs (default) and the legacy Gson → JSON string → Document round trip
+     */
+    public void setUseCodecs(boolean useCodecs) {
+        this.useCodecs = useCodecs;
+    }
+
+    public boolean isUseCodecs() {
+        return useCodecs;
+    }
+
+    /**
+     * Maximum number of operations sent in a single bulkWrite by the batch methods
+     */
+    public void setBulkChunkSize(int bulkChunkSize) {
+        if (bulkChunkSize < 1) { throw new IllegalArgumentException("bulkChunkSize must be positive"); }
+        this.bulkChunkSize = bulkChunkSize;
+    }
+
+    public int getBulkChunkSize() {
+        return bulkChunkSize;
+    }
+
+    /**
+     * Enables write-behind for the status collection: status writes are coalesced per key and flushed as one bulk write every <code>flushInterval</code>, or as soon as <code>maxPendingKeys</code> keys are waiting.
+     * Pending writes are visible to {@link #getStatus(String, Object)} and are flushed on {@link #disconnect()}.
+     */
+    public void enableStatusWriteBehind(long flushInterval, TimeUnit unit, int maxPendingKeys) {
+        if (statusWriteBuffer != null) { throw new IllegalStateException("Status write-behind is already enabled"); }
+        statusWriteBuffer = new StatusWriteBuffer(this, flushInterval, unit, maxPendingKeys);
+    }
+
+    /**
+     * Writes all pending status values, if write-behind is enabled
+     */
+    public BulkWriteSummary flushStatus() {
+        if (statusWriteBuffer == null) { return new BulkWriteSummary(); }
+        return statusWriteBuffer.flush();
+    }
+
+    /**
+     * Enables the in-process read-through cache for {@link #getResource(int)}, {@link #getAuthor(int)} and {@link #getCategory(int)}.
+     * Entries are invalidated by this client's own writes; cached objects are shared and must not be modified.
+     *
+     * @param maxSize     maximum number of entries per entity type
+     * @param ttl         time to keep found entities
+     * @param negativeTtl time to remember ids which weren't found
+     */
+    public void enableEntityCache(int maxSize, long ttl, long negativeTtl, TimeUnit unit) {
+        resourceCache = new EntityCache<>(maxSize, ttl, negativeTtl, unit);
+        authorCache = new EntityCache<>(maxSize, ttl, negativeTtl, unit);
+        categoryCache = new EntityCache<>(maxSize, ttl, negativeTtl, unit);
+    }
+
+    public void disableEntityCache() {
+        resourceCache = null;
+        authorCache = null;
+        categoryCache = null;
+    }
+
+    public EntityCache<Resource> getResourceCache() {
+        return resourceCache;
+    }
+
+    public EntityCache<Author> getAuthorCache() {
+        return authorCache;
+    }
+
+    public EntityCache<Category> getCategoryCache() {
+        return categoryCache;
+    }
+
+    private static void invalidate(EntityCache<?> cache, int id) {
+        if (cache != null) {
+            cache.invalidate(id);
+        }
+    }
+
+    /**
+     * Runs a write of a cached entity, invalidating it before and after.
+     * Invalidating only before would let a read which misses between the invalidation and the write cache the old document again.
+     */
+    private static <T> T writeCached(EntityCache<?> cache, int id, Supplier<T> write) {
+        invalidate(cache, id);
+        try {
+            return write.get();
+        } finally {
+            invalidate(cache, id);
+        }
+    }
+
+    private static void writeCachedRun(EntityCache<?> cache, int id, Runnable write) {
+        writeCached(cache, id, () -> {
+            write.run();
+            return null;
+        });
+    }
+
+    /**
+     * Enables diffing writes for {@link #updateResource(ListedResource)} and {@link #updateAuthor(ListedAuthor)}: the client remembers a hash of each field it last wrote, and only sends the fields which changed since (or just <code>fetch.latest</code>).
+     * Assumes this client is the only writer of the fields it serializes; entities changed elsewhere should be refreshed with {@link #invalidateFingerprints()}.
+     *
+     * @param maxEntries maximum number of entities per type to remember
+     */
+    public void enableDiffWrites(int maxEntries) {
+        resourceFingerprints = new EntityFingerprints(maxEntries);
+        authorFingerprints = new EntityFingerprints(maxEntries);
+    }
+
+    public void disableDiffWrites() {
+        resourceFingerprints = null;
+        authorFingerprints = null;
+    }
+
+    public boolean isDiffWrites() {
+        return resourceFingerprints != null;
+    }
+
+    /**
+     * Forgets all remembered fingerprints, so the next update of every entity is a full write
+     */
+    public void invalidateFingerprints() {
+        EntityFingerprints resources = resourceFingerprints;
+        if (resources != null) { resources.invalidateAll(); }
+        EntityFingerprints authors = authorFingerprints;
+        if (authors != null) { authors.invalidateAll(); }
+    }
+
+    private static void invalidate(EntityFingerprints fingerprints, int id) {
+        if (fingerprints != null) {
+            fingerprints.invalidate(id);
+        }
+    }
+
+    /**
+     * Drops the cached entity and fingerprints of a resource written outside the update methods
+     */
+    void invalidateResource(int id) {
+        invalidate(resourceCache, id);
+        invalidate(resourceFingerprints, id);
+    }
+
+    void invalidateAuthor(int id) {
+        invalidate(authorCache, id);
+        invalidate(authorFingerprints, id);
+    }
+
+    /**
+     * Stores string fields of resources which are larger than <code>thresholdBytes</code> gzip compressed in the resource_payloads collection, keyed by their SHA-256.
+     * The resource documents only keep a reference, which keeps them (and the working set of every resource query) small.
+     * Reads always put the payloads back, also in clients which don't offload themselves; writes of such clients store the fields inline again.
+     *
+     * @param fields top-level fields or dotted paths to offload, <code>description</code> and <code>icon.data</code> if none are given
+     */
+    public void enablePayloadOffload(int thresholdBytes, String... fields) {
+        if (thresholdBytes < 1) { throw new IllegalArgumentException("thresholdBytes must be positive"); }
+        List<String> list = fields.length == 0 ? Arrays.asList("description", "icon.data") : Arrays.asList(fields);
+        payloadStore = new PayloadStore(() -> store("resource_payloads"), thresholdBytes, Collections.unmodifiableList(new ArrayList<>(list)));
+        invalidateFingerprints();
+    }
+
+    public void disablePayloadOffload() {
+        payloadStore = null;
+    }
+
+    /**
+     * Deletes offloaded payloads which no resource references anymore, i.e. those of failed resource writes and of contents which were replaced since.
+     * Payloads which were used within the grace period are kept, so resource writes in flight never lose theirs.
+     *
+     * @param grace minimum time since a payload was last used, has to be longer than an hour
+     * @return number of deleted payloads
+     * @throws IllegalStateException if payload offloading isn't {@link #enablePayloadOffload(int, String...) enabled}
+     */
+    public int sweepPayloads(long grace, TimeUnit unit) {
+        PayloadStore payloads = payloadStore;
+        if (payloads == null) { throw new IllegalStateException("Payload offloading is not enabled"); }
+        return instrument("sweepPayloads", () -> payloads.sweep(store("resources"), unit.toMillis(grace)));
+    }
+
+    /**
+     * Loads a single offloaded field of a resource, e.g. the description for a resource loaded with {@link EntityView#RESOURCE_SUMMARY}
+     *
+     * @return the payload, or <code>null</code> if the resource doesn't exist or the field is stored inline
+     */
+    public String getResourcePayload(int id, String field) {
+        return instrument("getResourcePayload", () -> {
+            BsonDocument document = store("resources").findFirst(new Document("_id", id), Projections.include(PayloadStore.REFERENCES_FIELD), BsonDocument.class);
+            return document == null ? null : payloadReader.load(document, field);
+        });
+    }
+
+    /**
+     * Moves the payloads out of the document, if offloading is enabled
+     *
+     * @return the top-level fields which were removed and need to be unset in the stored document; the payload references if offloading is disabled, since the fields are stored inline again
+     */
+    private List<String> offload(BsonDocument document) {
+        PayloadStore payloads = payloadStore;
+        if (payloads == null) { return Collections.singletonList(PayloadStore.REFERENCES_FIELD); }
+        return payloads.offload(document);
+    }
+
+    /**
+     * Maximum number of ids per $in query of the multi-id lookups. Lookups with more than one chunk run their queries in parallel.
+     */
+    public void setLookupChunkSize(int lookupChunkSize) {
+        if (lookupChunkSize < 1) { throw new IllegalArgumentException("lookupChunkSize must be positive"); }
+        this.lookupChunkSize = lookupChunkSize;
+    }
+
+    public int getLookupChunkSize() {
+        return lookupChunkSize;
+    }
+
+    /**
+     * Number of threads used to run the chunks of a multi-id lookup in parallel. Has to be set before the first lookup.
+     */
+    public void setLookupParallelism(int lookupParallelism) {
+        if (lookupParallelism < 1) { throw new IllegalArgumentException("lookupParallelism must be positive"); }
+        this.lookupParallelism = lookupParallelism;
+    }
+
+    synchronized ExecutorService lookupExecutor() {
+        if (lookupExecutor == null) {
+            lookupExecutor = Executors.newFixedThreadPool(lookupParallelism, new DaemonThreadFactory("spiget-lookup"));
+        }
+        return lookupExecutor;
+    }
+
+    /**
+     * Enables latency and throughput instrumentation for this client's operations.
+     * Has to be called before {@link #connect(int)} to also capture the driver's command and connection pool events.
+     */
+    public synchronized ClientInstrumentation enableInstrumentation() {
+        if (instrumentation == null) {
+            if (mongoClient != null) {
+                log.warn("Instrumentation enabled after connecting, driver command and connection pool events won't be tracked");
+            }
+            instrumentation = new ClientInstrumentation(dbName);
+        }
+        return instrumentation;
+    }
+
+    public ClientInstrumentation getInstrumentation() {
+        return instrumentation;
+    }
+
+    <T> T instrument(String operation, Supplier<T> supplier) {
+        ClientInstrumentation instrumentation = this.instrumentation;
+        if (instrumentation == null) {
+            return supplier.get();
+        }
+        return instrumentation.instrument(operation, supplier);
+    }
+
+    void instrumentRun(String operation, Runnable runnable) {
+        instrument(operation, () -> {
+            runnable.run();
+            return null;
+        });
+    }
+
+    /**
+     * Whether {@link #connect(int)} should run {@link #ensureIndexes(boolean)}, creating missing indexes
+     */
+    public void setEnsureIndexesOnConnect(boolean ensureIndexesOnConnect) {
+        this.ensureIndexesOnConnect = ensureIndexesOnConnect;
+    }
+
+    /**
+     * Checks that the indexes this client's queries rely on exist, and logs the missing ones
+     *
+     * @param create whether to create missing indexes
+     * @return the indexes which were missing or have the wrong options
+     */
+    public List<DatabaseIndexes.IndexStatus> ensureIndexes(boolean create) {
+        return DatabaseIndexes.ensure(this, create);
+    }
+
     public int collectionCount() {
         int c = 0;
         for (String ignored : db().listCollectionNames()) {
@@ -71,216 +437,1097 @@ public class DatabaseClient {
         long allocatedMemory = runtime.totalMemory();
         long freeMemory = runtime.freeMemory();
 
-        updateStatus(prefix + "system.memory.max", (maxMemory / 1024));
-        updateStatus(prefix + "system.memory.free", (freeMemory / 1024));
-        updateStatus(prefix + "system.memory.allocated", (allocatedMemory / 1024));
-        updateStatus(prefix + "system.memory.used", (heapMemoryUsage.getUsed() / 1024));
-        updateStatus(prefix + "system.memory.committed", (heapMemoryUsage.getCommitted() / 1024));
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put(prefix + "system.memory.max", (maxMemory / 1024));
+        stats.put(prefix + "system.memory.free", (freeMemory / 1024));
+        stats.put(prefix + "system.memory.allocated", (allocatedMemory / 1024));
+        stats.put(prefix + "system.memory.used", (heapMemoryUsage.getUsed() / 1024));
+        stats.put(prefix + "system.memory.committed", (heapMemoryUsage.getCommitted() / 1024));
+        updateStatuses(stats);
     }
 
     // Resource
 
     public Resource getResource(int id) {
-        Document document = getResourcesCollection().find(new Document("_id", id)).limit(1).first();
-        if (document == null) { return null; }
-        JsonObject json = DatabaseParser.toJson(document);
-        return SpigetGson.RESOURCE.fromJson(json, Resource.class);
+        return instrument("getResource", () -> {
+            EntityCache<Resource> cache = resourceCache;
+            if (cache != null) {
+                return cache.get(id, this::loadResource);
+            }
+            return loadResource(id);
+        });
+    }
+
+    /**
+     * Loads only the fields of the view. Partial resources bypass the entity cache.
+     */
+    public Resource getResource(int id, EntityView view) {
+        if (view.isFull()) { return getResource(id); }
+        return instrument("getResource", () -> lookupResources(new int[] { id }, view).get(id));
+    }
+
+    private Resource loadResource(int id) {
+        return lookupResources(new int[] { id }, EntityView.FULL).get(id);
+    }
+
+    /**
+     * Streams the whole resources collection, in _id order
+     */
+    public EntityStream<Resource> streamResources(int batchSize) {
+        return streamResources(batchSize, EntityView.FULL);
+    }
+
+    /**
+     * Streams the fields of the view of all resources, in _id order
+     */
+    public EntityStream<Resource> streamResources(int batchSize, EntityView view) {
+        Bson projection = resourceProjection(view);
+        // Offloaded payloads are loaded with one query per cursor batch as the stream is consumed
+        MongoCursor<RawBsonDocument> cursor = getResourcesCollection().withDocumentClass(RawBsonDocument.class).find().projection(projection).sort(new Document("_id", 1)).batchSize(batchSize).iterator();
+        return EntityStream.batched(cursor, batchSize, batch -> {
+            List<BsonDocument> documents = new ArrayList<>(batch.size());
+            for (RawBsonDocument raw : batch) {
+                documents.add(raw.decode(new BsonDocumentCodec()));
+            }
+            return restoreResources(documents, view);
+        });
+    }
+
+    public LookupResult<Resource> getResources(int... ids) {
+        return instrument("getResources", () -> lookupResources(ids, EntityView.FULL));
+    }
+
+    public LookupResult<Resource> getResources(EntityView view, int... ids) {
+        return instrument("getResources", () -> lookupResources(ids, view));
+    }
+
+    /**
+     * Lists resources in _id order, starting after the position's id
+     */
+    public KeysetPage<Resource> listResources(KeysetPage.Position after, int limit, EntityView view) {
+        return instrument("listResources", () -> page(store("resources"), Filters.gt("_id", after.getId()), new Document("_id", 1), resourceProjection(view), view, after, limit, Resource.class, true));
+    }
+
+    /**
+     * Feed of the resources whose fetch.latest is at or after the timestamp, oldest change first.
+     * Start with {@link KeysetPage.Position#since(long)} and continue with {@link KeysetPage#getNext()}; resources which are updated again while paging show up again later in the feed.
+     */
+    public KeysetPage<Resource> getResourcesChangedSince(KeysetPage.Position after, int limit, EntityView view) {
+        return instrument("getResourcesChangedSince", () -> page(store("resources"), changedAfter(after), FETCH_LATEST_ORDER, resourceProjection(view), view, after, limit, Resource.class, true));
+    }
+
+    /**
+     * Adds the payload references to partial projections, since any of the view's fields may have been offloaded (by this or another client)
+     */
+    private static Bson resourceProjection(EntityView view) {
+        if (view.isFull()) { return view.projection(); }
+        return Projections.fields(view.projection(), Projections.include(PayloadStore.REFERENCES_FIELD));
+    }
+
+    /**
+     * Multi-id lookup of resources which also puts offloaded payloads back
+     */
+    private LookupResult<Resource> lookupResources(int[] ids, EntityView view) {
+        Bson projection = resourceProjection(view);
+        DocumentStore store = store("resources");
+        return findByIds(ids, Resource::getId, chunk -> restoreResources(store.find(Filters.in("_id", chunk), projection, null, 0, BsonDocument.class), view));
+    }
+
+    /**
+     * Puts the offloaded payloads of the view's fields back into the resource documents, and decodes them
+     */
+    private List<Resource> restoreResources(List<BsonDocument> documents, EntityView view) {
+        payloadReader.restore(documents, view);
+        List<Resource> resources = new ArrayList<>(documents.size());
+        for (BsonDocument document : documents) {
+            resources.add(decode(document, SpigetGson.RESOURCE, Resource.class));
+        }
+        return resources;
+    }
+
+    /**
+     * Single-resource variant of {@link #getResourcesResolved(Set, int...)}
+     */
+    public Resource getResourceResolved(int id, Set<ResourceReference> references) {
+        return getResourcesResolved(references, id).get(id);
+    }
+
+    /**
+     * Loads the resources and replaces their id-only author, category and/or version stubs with the full entities.
+     * Each reference type is loaded with one batched $in lookup across all resources, instead of one query per resource.
+     * Stubs whose entity doesn't exist are left as they are.
+     */
+    public LookupResult<Resource> getResourcesResolved(Set<ResourceReference> references, int... ids) {
+        return instrument("getResourcesResolved", () -> {
+            // Always fresh copies, cached resources are shared and mustn't be modified
+            LookupResult<Resource> resources = lookupResources(ids, EntityView.FULL);
+            List<Resource> found = new ArrayList<>();
+            for (Resource resource : resources.getEntities().values()) {
+                if (resource != null) { found.add(resource); }
+            }
+            if (found.isEmpty()) { return resources; }
+
+            if (references.contains(ResourceReference.AUTHOR)) {
+                LookupResult<Author> authors = findByIds(store("authors"), referencedIds(found, r -> r.getAuthor() == null ? null : r.getAuthor().getId()), SpigetGson.AUTHOR, Author.class, Author::getId);
+                for (Resource resource : found) {
+                    if (resource.getAuthor() == null) { continue; }
+                    Author author = authors.get(resource.getAuthor().getId());
+                    if (author != null) { resource.setAuthor(author); }
+                }
+            }
+            if (references.contains(ResourceReference.CATEGORY)) {
+                LookupResult<Category> categories = findByIds(store("categories"), referencedIds(found, r -> r.getCategory() == null ? null : r.getCategory().getId()), SpigetGson.CATEGORY, Category.class, Category::getId);
+                for (Resource resource : found) {
+                    if (resource.getCategory() == null) { continue; }
+                    Category category = categories.get(resource.getCategory().getId());
+                    if (category != null) { resource.setCategory(category); }
+                }
+            }
+            if (references.contains(ResourceReference.VERSION)) {
+                LookupResult<ResourceVersion> versions = findByIds(store("resource_versions"), referencedIds(found, r -> r.getVersion() == null ? null : r.getVersion().getId()), SpigetGson.RESOURCE_VERSION, ResourceVersion.class, ResourceVersion::getId);
+                for (Resource resource : found) {
+                    if (resource.getVersion() == null) { continue; }
+                    ResourceVersion version = versions.get(resource.getVersion().getId());
+                    if (version != null) { resource.setVersion(version); }
+                }
+            }
+            return resources;
+        });
+    }
+
+    private static int[] referencedIds(List<Resource> resources, Function<Resource, Integer> reference) {
+        Set<Integer> ids = new LinkedHashSet<>();
+        for (Resource resource : resources) {
+            Integer id = reference.apply(resource);
+            if (id != null) { ids.add(id); }
+        }
+        int[] array = new int[ids.size()];
+        int i = 0;
+        for (Integer id : ids) {
+            array[i++] = id;
+        }
+        return array;
     }
 
     public UpdateResult updateResource(ListedResource resource) {
+        if (resourceFingerprints != null) {
+            return updateResourceDiff(resource).getUpdateResult();
+        }
+        return instrument("updateResource", () -> writeCached(resourceCache, resource.getId(),
+                () -> store("resources").updateOne(new Document("_id", resource.getId()), resourceUpdate(resource), false)));
+    }
+
+    /**
+     * Full update of a resource, with its payloads offloaded and <code>fetch.latest</code> set to now
+     */
+    Document resourceUpdate(ListedResource resource) {
         long unix = System.currentTimeMillis() / 1000;
-        Document document = DatabaseParser.toDocument(SpigetGson.RESOURCE.toJsonTree(resource));
-        return getResourcesCollection().updateOne(new Document("_id", resource.getId()), new Document("$set", document
-                .append("fetch", new Document("latest", unix))));
+        BsonDocument document = toBson(SpigetGson.RESOURCE, resource);
+        List<String> offloaded = offload(document);
+        Document update = new Document("$set", document
+                .append("fetch", new BsonDocument("latest", new BsonInt64(unix))));
+        if (!offloaded.isEmpty()) {
+            update.append("$unset", unsetDocument(offloaded));
+        }
+        return update;
+    }
+
+    /**
+     * Writes only the fields of the resource which changed since this client last wrote it, and reports them
+     *
+     * @throws IllegalStateException if diff writes aren't {@link #enableDiffWrites(int) enabled}
+     */
+    public DiffWriteResult updateResourceDiff(ListedResource resource) {
+        return instrument("updateResourceDiff", () -> writeCached(resourceCache, resource.getId(), () -> {
+            BsonDocument document = toBson(SpigetGson.RESOURCE, resource);
+            List<String> offloaded = offload(document);
+            return diffUpdate(store("resources"), requireFingerprints(resourceFingerprints), resource.getId(), document, offloaded);
+        }));
     }
 
     public void insertResource(ListedResource resource) {
-        long unix = System.currentTimeMillis() / 1000;
-        Document document = DatabaseParser.toDocument(SpigetGson.RESOURCE.toJsonTree(resource));
-        getResourcesCollection().insertOne(document
-                .append("fetch", new Document("latest", unix)
-                        .append("first", unix)));
+        instrumentRun("insertResource", () -> writeCachedRun(resourceCache, resource.getId(), () -> {
+            long unix = System.currentTimeMillis() / 1000;
+            BsonDocument document = toBson(SpigetGson.RESOURCE, resource);
+            offload(document);
+            EntityFingerprints.Diff diff = resourceFingerprints != null ? resourceFingerprints.diff(resource.getId(), document) : null;
+            store("resources").insertOne(document
+                    .append("fetch", new BsonDocument("latest", new BsonInt64(unix))
+                            .append("first", new BsonInt64(unix))));
+            if (diff != null) {
+                resourceFingerprints.commit(diff);
+            }
+        }));
     }
 
     public void deleteResource(int id) {
-        MongoCollection<Document> collection = getResourcesCollection();
-        collection.deleteOne(new Document("_id", id));
+        instrumentRun("deleteResource", () -> writeCachedRun(resourceCache, id, () -> {
+            invalidate(resourceFingerprints, id);
+            store("resources").deleteOne(new Document("_id", id));
+        }));
     }
 
     // Resource Versions
 
     public UpdateResult updateOrInsertVersion(ListedResource resource, ListedResourceVersion version) {
-        Document document = DatabaseParser.toDocument(SpigetGson.RESOURCE_VERSION.toJsonTree(version));
-        return getResourceVersionsCollection().updateOne(new Document("_id", version.getId()), new Document("$set", document), new UpdateOptions().upsert(true));
+        return instrument("updateOrInsertVersion", () -> {
+            BsonDocument document = toBson(SpigetGson.RESOURCE_VERSION, version);
+            return store("resource_versions").updateOne(new Document("_id", version.getId()), new Document("$set", document), true);
+        });
+    }
+
+    public BulkWriteSummary updateOrInsertVersions(ListedResource resource, Collection<? extends ListedResourceVersion> versions) {
+        return instrument("updateOrInsertVersions", () -> bulkUpsert(store("resource_versions"), versions, SpigetGson.RESOURCE_VERSION, ListedResourceVersion::getId));
     }
 
     // Resource Updates
 
     public UpdateResult updateOrInsertUpdate(ListedResource resource, ResourceUpdate update) {
-        Document document = DatabaseParser.toDocument(SpigetGson.RESOURCE_UPDATE.toJsonTree(update));
-        return getResourceUpdatesCollection().updateOne(new Document("_id", update.getId()), new Document("$set", document), new UpdateOptions().upsert(true));
+        return instrument("updateOrInsertUpdate", () -> {
+            BsonDocument document = toBson(SpigetGson.RESOURCE_UPDATE, update);
+            return store("resource_updates").updateOne(new Document("_id", update.getId()), new Document("$set", document), true);
+        });
+    }
+
+    public BulkWriteSummary updateOrInsertUpdates(ListedResource resource, Collection<? extends ResourceUpdate> updates) {
+        return instrument("updateOrInsertUpdates", () -> bulkUpsert(store("resource_updates"), updates, SpigetGson.RESOURCE_UPDATE, ResourceUpdate::getId));
     }
 
     // Resource Reviews
 
     public UpdateResult updateOrInsertReview(ListedResource resource, ResourceReview review) {
-        Document document = DatabaseParser.toDocument(SpigetGson.RESOURCE_REVIEW.toJsonTree(review));
-        return getResourceReviewsCollection().updateOne(new Document("_id", review.getId()), new Document("$set", document), new UpdateOptions().upsert(true));
+        return instrument("updateOrInsertReview", () -> {
+            BsonDocument document = toBson(SpigetGson.RESOURCE_REVIEW, review);
+            return store("resource_reviews").updateOne(new Document("_id", review.getId()), new Document("$set", document), true);
+        });
+    }
+
+    public BulkWriteSummary updateOrInsertReviews(ListedResource resource, Collection<? extends ResourceReview> reviews) {
+        return instrument("updateOrInsertReviews", () -> bulkUpsert(store("resource_reviews"), reviews, SpigetGson.RESOURCE_REVIEW, ResourceReview::getId));
     }
 
     // Author
 
     public Author getAuthor(int id) {
-        Document document = getAuthorsCollection().find(new Document("_id", id)).limit(1).first();
-        if (document == null) { return null; }
-        JsonObject json = DatabaseParser.toJson(document);
-        return SpigetGson.AUTHOR.fromJson(json, Author.class);
+        return instrument("getAuthor", () -> {
+            EntityCache<Author> cache = authorCache;
+            if (cache != null) {
+                return cache.get(id, this::loadAuthor);
+            }
+            return loadAuthor(id);
+        });
+    }
+
+    /**
+     * Loads only the fields of the view. Partial authors bypass the entity cache.
+     */
+    public Author getAuthor(int id, EntityView view) {
+        if (view.isFull()) { return getAuthor(id); }
+        return instrument("getAuthor", () -> findOne(store("authors"), new Document("_id", id), view.projection(), SpigetGson.AUTHOR, Author.class));
+    }
+
+    private Author loadAuthor(int id) {
+        return findOne(store("authors"), new Document("_id", id), SpigetGson.AUTHOR, Author.class);
+    }
+
+    /**
+     * Streams the whole authors collection, in _id order
+     */
+    public EntityStream<Author> streamAuthors(int batchSize) {
+        return stream(getAuthorsCollection(), collection -> collection.find().sort(new Document("_id", 1)).batchSize(batchSize), SpigetGson.AUTHOR, Author.class);
+    }
+
+    public LookupResult<Author> getAuthors(int... ids) {
+        return instrument("getAuthors", () -> findByIds(store("authors"), ids, SpigetGson.AUTHOR, Author.class, Author::getId));
+    }
+
+    /**
+     * Lists authors in _id order, starting after the position's id
+     */
+    public KeysetPage<Author> listAuthors(KeysetPage.Position after, int limit, EntityView view) {
+        return instrument("listAuthors", () -> page(store("authors"), Filters.gt("_id", after.getId()), new Document("_id", 1), view.projection(), view, after, limit, Author.class, false));
+    }
+
+    /**
+     * Feed of the authors whose fetch.latest is at or after the timestamp, oldest change first
+     *
+     * @see #getResourcesChangedSince(KeysetPage.Position, int, EntityView)
+     */
+    public KeysetPage<Author> getAuthorsChangedSince(KeysetPage.Position after, int limit, EntityView view) {
+        return instrument("getAuthorsChangedSince", () -> page(store("authors"), changedAfter(after), FETCH_LATEST_ORDER, view.projection(), view, after, limit, Author.class, false));
     }
 
+    public LookupResult<Author> getAuthors(EntityView view, int... ids) {
+        return instrument("getAuthors", () -> findByIds(store("authors"), ids, view.projection(), SpigetGson.AUTHOR, Author.class, Author::getId));
+    }
+
+    /**
+     * @see #enableDiffWrites(int)
+     */
     public UpdateResult updateAuthor(ListedAuthor author) {
+        if (authorFingerprints != null) {
+            return updateAuthorDiff(author).getUpdateResult();
+        }
+        return instrument("updateAuthor", () -> writeCached(authorCache, author.getId(),
+                () -> store("authors").updateOne(new Document("_id", author.getId()), authorUpdate(author), false)));
+    }
+
+    /**
+     * Full update of an author, with <code>fetch.latest</code> set to now
+     */
+    Document authorUpdate(ListedAuthor author) {
         long unix = System.currentTimeMillis() / 1000;
-        Document document = DatabaseParser.toDocument(SpigetGson.AUTHOR.toJsonTree(author));
-        return getAuthorsCollection().updateOne(new Document("_id", author.getId()), new Document("$set", document
-                .append("fetch", new Document("latest", unix))));
+        BsonDocument document = toBson(SpigetGson.AUTHOR, author);
+        return new Document("$set", document
+                .append("fetch", new BsonDocument("latest", new BsonInt64(unix))));
+    }
+
+    /**
+     * Writes only the fields of the author which changed since this client last wrote it, and reports them
+     *
+     * @throws IllegalStateException if diff writes aren't {@link #enableDiffWrites(int) enabled}
+     */
+    public DiffWriteResult updateAuthorDiff(ListedAuthor author) {
+        return instrument("updateAuthorDiff", () -> writeCached(authorCache, author.getId(),
+                () -> diffUpdate(store("authors"), requireFingerprints(authorFingerprints), author.getId(), toBson(SpigetGson.AUTHOR, author), Collections.emptyList())));
     }
 
     public void insertAuthor(ListedAuthor author) {
-        long unix = System.currentTimeMillis() / 1000;
-        Document document = DatabaseParser.toDocument(SpigetGson.AUTHOR.toJsonTree(author));
-        getAuthorsCollection().insertOne(document
-                .append("fetch", new Document("latest", unix)
-                        .append("first", unix)));
+        instrumentRun("insertAuthor", () -> writeCachedRun(authorCache, author.getId(), () -> {
+            long unix = System.currentTimeMillis() / 1000;
+            BsonDocument document = toBson(SpigetGson.AUTHOR, author);
+            EntityFingerprints.Diff diff = authorFingerprints != null ? authorFingerprints.diff(author.getId(), document) : null;
+            store("authors").insertOne(document
+                    .append("fetch", new BsonDocument("latest", new BsonInt64(unix))
+                            .append("first", new BsonInt64(unix))));
+            if (diff != null) {
+                authorFingerprints.commit(diff);
+            }
+        }));
     }
 
     public UpdateResult updateOrInsertAuthor(ListedAuthor author) {
-        Document document = DatabaseParser.toDocument(SpigetGson.AUTHOR.toJsonTree(author));
-        return getAuthorsCollection().updateOne(new Document("_id", author.getId()), new Document("$set", document), new UpdateOptions().upsert(true));
+        return instrument("updateOrInsertAuthor", () -> writeCached(authorCache, author.getId(), () -> {
+            invalidate(authorFingerprints, author.getId());
+            BsonDocument document = toBson(SpigetGson.AUTHOR, author);
+            return store("authors").updateOne(new Document("_id", author.getId()), new Document("$set", document), true);
+        }));
     }
 
     // Category
 
     public Category getCategory(int id) {
-        Document document = getCategoriesCollection().find(new Document("_id", id)).limit(1).first();
-        if (document == null) { return null; }
-        JsonObject json = DatabaseParser.toJson(document);
-        return SpigetGson.CATEGORY.fromJson(json, Category.class);
+        return instrument("getCategory", () -> {
+            EntityCache<Category> cache = categoryCache;
+            if (cache != null) {
+                return cache.get(id, this::loadCategory);
+            }
+            return loadCategory(id);
+        });
+    }
+
+    private Category loadCategory(int id) {
+        return findOne(store("categories"), new Document("_id", id), SpigetGson.CATEGORY, Category.class);
+    }
+
+    public LookupResult<Category> getCategories(int... ids) {
+        return instrument("getCategories", () -> findByIds(store("categories"), ids, SpigetGson.CATEGORY, Category.class, Category::getId));
     }
 
     public UpdateResult updateCategory(ListedCategory category) {
-        Document document = DatabaseParser.toDocument(SpigetGson.CATEGORY.toJsonTree(category));
-        return getCategoriesCollection().updateOne(new Document("_id", category.getId()), new Document("$set", document));
+        return instrument("updateCategory", () -> writeCached(categoryCache, category.getId(), () -> {
+            BsonDocument document = toBson(SpigetGson.CATEGORY, category);
+            return store("categories").updateOne(new Document("_id", category.getId()), new Document("$set", document), false);
+        }));
     }
 
     public void insertCategory(ListedCategory category) {
-        Document document = DatabaseParser.toDocument(SpigetGson.CATEGORY.toJsonTree(category));
-        getCategoriesCollection().insertOne(document);
+        instrumentRun("insertCategory", () -> writeCachedRun(categoryCache, category.getId(), () -> {
+            BsonDocument document = toBson(SpigetGson.CATEGORY, category);
+            store("categories").insertOne(document);
+        }));
     }
 
     public UpdateResult updateOrInsertCategory(ListedCategory category) {
-        Document document = DatabaseParser.toDocument(SpigetGson.CATEGORY.toJsonTree(category));
-        return getCategoriesCollection().updateOne(new Document("_id", category.getId()), new Document("$set", document), new UpdateOptions().upsert(true));
+        return instrument("updateOrInsertCategory", () -> writeCached(categoryCache, category.getId(), () -> {
+            BsonDocument document = toBson(SpigetGson.CATEGORY, category);
+            return store("categories").updateOne(new Document("_id", category.getId()), new Document("$set", document), true);
+        }));
     }
 
     // Status
 
+    /**
+     * @return the result of the upsert, or {@link UpdateResult#unacknowledged()} if the write was buffered
+     */
     public UpdateResult updateStatus(String key, Object value) {
-        return getStatusCollection().updateOne(new Document("key", key), new Document("$set", new Document("key", key).append("value", value)), new UpdateOptions().upsert(true));
+        return instrument("updateStatus", () -> {
+            if (statusWriteBuffer != null) {
+                statusWriteBuffer.put(key, value);
+                return UpdateResult.unacknowledged();
+            }
+            return store("status").updateOne(new Document("key", key), new Document("$set", new Document("key", key).append("value", value)), true);
+        });
+    }
+
+    /**
+     * Updates multiple status keys with a single bulk write (or buffers them, if write-behind is enabled)
+     */
+    public BulkWriteSummary updateStatuses(Map<String, ?> values) {
+        return instrument("updateStatuses", () -> {
+            if (statusWriteBuffer != null) {
+                for (Map.Entry<String, ?> entry : values.entrySet()) {
+                    statusWriteBuffer.put(entry.getKey(), entry.getValue());
+                }
+                return new BulkWriteSummary();
+            }
+            return writeStatuses(values);
+        });
+    }
+
+    BulkWriteSummary writeStatuses(Map<String, ?> values) {
+        BulkWriteSummary summary = new BulkWriteSummary();
+        List<WriteModel<Document>> models = new ArrayList<>();
+        List<Object> keys = new ArrayList<>();
+        for (Map.Entry<String, ?> entry : values.entrySet()) {
+            models.add(new UpdateOneModel<>(new Document("key", entry.getKey()), new Document("$set", new Document("key", entry.getKey()).append("value", entry.getValue())), new UpdateOptions().upsert(true)));
+            keys.add(entry.getKey());
+            if (models.size() >= bulkChunkSize) {
+                store("status").bulkWrite(models, keys, summary);
+                models.clear();
+                keys.clear();
+            }
+        }
+        if (!models.isEmpty()) {
+            store("status").bulkWrite(models, keys, summary);
+        }
+        return summary;
     }
 
     public <T> T getStatus(String key, T def) {
-        FindIterable<Document> documents = getStatusCollection().find(new Document("key", key)).limit(1);
-        if (documents != null) {
-            for (Document document : documents) {
+        return instrument("getStatus", () -> {
+            if (statusWriteBuffer != null) {
+                Object buffered = statusWriteBuffer.get(key);
+                if (buffered != null) {
+                    return buffered == StatusWriteBuffer.NULL ? null : (T) buffered;
+                }
+            }
+            Document document = store("status").findFirst(new Document("key", key), null, Document.class);
+            if (document != null) {
                 return (T) document.get("value");
             }
-        }
-        return def;
+            return def;
+        });
     }
 
     public UpdateResult renameStatus(String fromKey, String toKey) {
-        return getStatusCollection().updateOne(new Document("key", fromKey), new Document("$set", new Document("key", toKey)));
+        return instrument("renameStatus", () -> {
+            if (statusWriteBuffer != null) {
+                statusWriteBuffer.flush();
+            }
+            return store("status").updateOne(new Document("key", fromKey), new Document("$set", new Document("key", toKey)), false);
+        });
     }
 
     // Webhook
 
     public Set<Webhook> getWebhooks(String eventType) {
-        MongoCollection<Document> collection = getWebhooksCollection();
-        FindIterable<Document> iterable = eventType == null ? collection.find() : collection.find(new Document("events", eventType));
-        Set<Webhook> set = new HashSet<>();
-        if (iterable != null) {
-            for (Document document : iterable) {
-                set.add(SpigetGson.WEBHOOK.fromJson(DatabaseParser.toJson(document), Webhook.class));
-            }
-        }
-        return set;
+        return instrument("getWebhooks", () -> {
+            Bson filter = eventType == null ? new Document() : new Document("events", eventType);
+            return new HashSet<>(findMany(store("webhooks"), filter, SpigetGson.WEBHOOK, Webhook.class));
+        });
+    }
+
+    /**
+     * Streaming variant of {@link #getWebhooks(String)}
+     *
+     * @param eventType event to filter by, or <code>null</code> for all webhooks
+     */
+    public EntityStream<Webhook> streamWebhooks(String eventType, int batchSize) {
+        Bson filter = eventType == null ? new Document() : new Document("events", eventType);
+        return stream(getWebhooksCollection(), collection -> collection.find(filter).batchSize(batchSize), SpigetGson.WEBHOOK, Webhook.class);
     }
 
     public void updateWebhookStatus(Webhook webhook) {
-        MongoCollection<Document> collection = getWebhooksCollection();
-        collection.updateOne(new Document("_id", webhook.id),
-                new Document("$set",
-                        new Document("failedConnections", webhook.failedConnections)
-                                .append("failStatus", webhook.failStatus)));
+        instrumentRun("updateWebhookStatus", () -> {
+            long modified = System.currentTimeMillis();
+            store("webhooks").updateOne(new Document("_id", webhook.id),
+                    new Document("$set",
+                            new Document("failedConnections", webhook.failedConnections)
+                                    .append("failStatus", webhook.failStatus)
+                                    .append(WebhookRegistry.MODIFIED_FIELD, modified)), false);
+            WebhookRegistry registry = webhookRegistry;
+            if (registry != null) {
+                registry.applyStatus(webhook, modified);
+            }
+        });
+    }
+
+    /**
+     * Persists the failure counters of many webhooks with unordered bulk writes
+     */
+    public BulkWriteSummary updateWebhookStatuses(Collection<? extends Webhook> webhooks) {
+        return instrument("updateWebhookStatuses", () -> {
+            long modified = System.currentTimeMillis();
+            BulkWriteSummary summary = new BulkWriteSummary();
+            List<WriteModel<Document>> models = new ArrayList<>();
+            List<Object> ids = new ArrayList<>();
+            for (Webhook webhook : webhooks) {
+                models.add(new UpdateOneModel<>(new Document("_id", webhook.id),
+                        new Document("$set",
+                                new Document("failedConnections", webhook.failedConnections)
+                                        .append("failStatus", webhook.failStatus)
+                                        .append(WebhookRegistry.MODIFIED_FIELD, modified))));
+                ids.add(webhook.id);
+                if (models.size() >= bulkChunkSize) {
+                    store("webhooks").bulkWrite(models, ids, summary);
+                    models.clear();
+                    ids.clear();
+                }
+            }
+            if (!models.isEmpty()) {
+                store("webhooks").bulkWrite(models, ids, summary);
+            }
+            WebhookRegistry registry = webhookRegistry;
+            if (registry != null) {
+                registry.applyStatuses(webhooks, modified);
+            }
+            return summary;
+        });
     }
 
     public void deleteWebhook(Webhook webhook) {
-        MongoCollection<Document> collection = getWebhooksCollection();
-        collection.deleteOne(new Document("_id", webhook.id));
+        instrumentRun("deleteWebhook", () -> {
+            store("webhooks").deleteOne(new Document("_id", webhook.id));
+            WebhookRegistry registry = webhookRegistry;
+            if (registry != null) {
+                registry.applyDelete(webhook);
+            }
+        });
+    }
+
+    /**
+     * Loads all webhooks into an in-memory {@link WebhookRegistry} which is kept up to date with a change stream, or by polling for modified webhooks every <code>pollInterval</code> where change streams aren't available.
+     * The registry is closed on {@link #disconnect()}.
+     */
+    public synchronized WebhookRegistry startWebhookRegistry(long pollInterval, TimeUnit unit) {
+        if (webhookRegistry != null) { return webhookRegistry; }
+        WebhookRegistry registry = new WebhookRegistry(this, pollInterval, unit);
+        registry.start();
+        return webhookRegistry = registry;
+    }
+
+    public WebhookRegistry getWebhookRegistry() {
+        return webhookRegistry;
     }
 
     // Metrics
     public void insertMetricsData(JsonObject data) {
-        Document document = DatabaseParser.toDocument(data);
-        getMetricsCollection().insertOne(document);
+        instrumentRun("insertMetricsData", () -> {
+            MetricsSink sink = metricsSink;
+            if (sink != null) {
+                sink.offer(toBson(data));
+                return;
+            }
+            store("metrics").insertOne(toBson(data));
+        });
+    }
+
+    /**
+     * Routes {@link #insertMetricsData(JsonObject)} through a {@link MetricsSink}, which queues up to <code>capacity</code> samples and writes them from a background thread in batches of <code>batchSize</code>, or of whatever arrived within <code>flushInterval</code> of a batch's first sample.
+     * The sink is flushed and closed on {@link #disconnect()}.
+     *
+     * @param timeField field to stamp the queue time into, if missing (for time-series collections), or <code>null</code>
+     */
+    public synchronized MetricsSink startMetricsSink(int capacity, int batchSize, long flushInterval, TimeUnit unit, MetricsSink.OverflowPolicy policy, String timeField) {
+        if (metricsSink != null) { throw new IllegalStateException("Metrics sink is already running"); }
+        return metricsSink = new MetricsSink(getMetricsCollection().withDocumentClass(BsonDocument.class), capacity, batchSize, flushInterval, unit, policy, timeField);
+    }
+
+    public MetricsSink getMetricsSink() {
+        return metricsSink;
+    }
+
+    /**
+     * Creates the metrics collection as a time-series collection (MongoDB 5.0+), unless it already exists
+     *
+     * @param metaField   optional field holding the per-series metadata
+     * @param granularity "seconds", "minutes" or "hours"
+     * @return <code>true</code> if the collection was created
+     */
+    public boolean createMetricsTimeSeries(String timeField, String metaField, String granularity) {
+        Document timeseries = new Document("timeField", timeField);
+        if (metaField != null) { timeseries.append("metaField", metaField); }
+        if (granularity != null) { timeseries.append("granularity", granularity); }
+        try {
+            db().runCommand(new Document("create", "metrics").append("timeseries", timeseries));
+            metricsCollection = null;
+            return true;
+        } catch (MongoCommandException e) {
+            if (e.getErrorCode() == 48) {// NamespaceExists
+                log.warn("metrics collection already exists, not converting it to a time-series collection");
+                return false;
+            }
+            throw e;
+        }
     }
 
     // Update Requests
     public Set<UpdateRequest> getUpdateRequests(int limit) {
-        MongoCollection<Document> collection = getUpdateRequestsCollection();
-        FindIterable<Document> iterable = collection.find().sort(new Document("requested", 1)).projection(Projections.fields(Projections.exclude("requested"))).limit(limit);
-        Set<UpdateRequest> set = new HashSet<>();
-        if (iterable != null) {
-            for (Document document : iterable) {
-                JsonObject json = DatabaseParser.toJson(document);
+        return instrument("getUpdateRequests", () -> {
+            DocumentStore store = store("update_requests");
+            Document order = new Document("requested", 1);
+            Bson projection = Projections.fields(Projections.exclude("requested"));
+            Set<UpdateRequest> set = new HashSet<>();
+            if (useCodecs) {
                 try {
-                    set.add(SpigetGson.UPDATE_REQUEST.fromJson(json, UpdateRequest.class));
+                    set.addAll(store.find(new Document(), projection, order, limit, UpdateRequest.class));
                 } catch (JsonSyntaxException e) {
                     Sentry.captureException(e);
-                    log.log(Level.WARN, "Failed to parse UpdateRequest " + document.getObjectId("_id") + " to from json", e);
-                    log.warn(json.toString());
+                    log.log(Level.WARN, "Failed to parse UpdateRequest from bson", e);
                     throw e;
                 }
+                return set;
             }
-        }
-        return set;
+            List<Document> documents = store.find(new Document(), projection, order, limit, Document.class);
+            if (documents != null) {
+                for (Document document : documents) {
+                    JsonObject json = DatabaseParser.toJson(document);
+                    try {
+                        set.add(SpigetGson.UPDATE_REQUEST.fromJson(json, UpdateRequest.class));
+                    } catch (JsonSyntaxException e) {
+                        Sentry.captureException(e);
+                        log.log(Level.WARN, "Failed to parse UpdateRequest " + document.getObjectId("_id") + " to from json", e);
+                        log.warn(json.toString());
+                        throw e;
+                    }
+                }
+            }
+            return set;
+        });
+    }
+
+    /**
+     * Streaming variant of {@link #getUpdateRequests(int)}, which keeps the oldest-first order
+     *
+     * @param limit maximum number of requests, or 0 for all of them
+     */
+    public EntityStream<UpdateRequest> streamUpdateRequests(int limit, int batchSize) {
+        return stream(getUpdateRequestsCollection(), collection -> collection.find().sort(new Document("requested", 1)).projection(Projections.fields(Projections.exclude("requested"))).limit(limit).batchSize(batchSize), SpigetGson.UPDATE_REQUEST, UpdateRequest.class);
     }
 
     public void deleteUpdateRequest(UpdateRequest request) {
-        MongoCollection<Document> collection = getUpdateRequestsCollection();
-        collection.deleteMany(new Document("requestedId", request.getRequestedId()));
+        instrumentRun("deleteUpdateRequest", () -> {
+            store("update_requests").deleteMany(new Document("requestedId", request.getRequestedId()));
+        });
     }
 
+    /**
+     * @param timeout connect timeout in milliseconds, unless the {@link DatabaseClientSettings} specify one
+     */
     public void connect(int timeout) {
+        if (storage != null && !(storage instanceof MongoStorageBackend)) {
+            return;
+        }
         if (mongoClient == null) {
                 log.info("Connecting to MongoDB...");
-                mongoClient = MongoClients.create(this.url);
+                MongoClientSettings.Builder settings = MongoClientSettings.builder()
+                        .codecRegistry(DatabaseParser.SPIGET_CODEC_REGISTRY);
+                if (this.url != null) {
+                    settings.applyConnectionString(new ConnectionString(this.url));
+                } else {
+                    settings.applyToClusterSettings(builder -> builder.hosts(Collections.singletonList(new ServerAddress(host, port))));
+                    if (credential != null) {
+                        settings.credential(credential);
+                    }
+                }
+                this.settings.applyTo(settings, timeout);
+                if (instrumentation != null) {
+                    settings.addCommandListener(instrumentation.getCommandListener())
+                            .applyToConnectionPoolSettings(builder -> builder.addConnectionPoolListener(instrumentation.getConnectionPool()));
+                }
+                mongoClient = MongoClients.create(settings.build());
+                storage = new MongoStorageBackend(this::mongoCollection);
+                if (ensureIndexesOnConnect) {
+                    ensureIndexes(true);
+                }
         }
     }
 
     public void disconnect() throws IOException {
+        if (statusWriteBuffer != null) {
+            statusWriteBuffer.close();
+            statusWriteBuffer = null;
+        }
+        synchronized (this) {
+            if (metricsSink != null) {
+                metricsSink.close();
+                metricsSink = null;
+            }
+            if (webhookRegistry != null) {
+                webhookRegistry.close();
+                webhookRegistry = null;
+            }
+            if (lookupExecutor != null) {
+                lookupExecutor.shutdown();
+                lookupExecutor = null;
+            }
+        }
+        if (storage != null) {
+            storage.close();
+        }
         if (mongoClient != null) {
             mongoClient.close();
         }
+        if (instrumentation != null) {
+            instrumentation.close();
+        }
     }
 
     public MongoDatabase db() {
         if (mongoDatabase == null) {
+            if (mongoClient == null) {
+                throw new IllegalStateException(storage != null ? "Not available on " + storage.getClass().getSimpleName() : "Not connected");
+            }
             log.info("Initializing database '" + dbName + "'");
-            mongoDatabase = mongoClient.getDatabase(dbName);
+            mongoDatabase = mongoClient.getDatabase(dbName).withCodecRegistry(DatabaseParser.SPIGET_CODEC_REGISTRY);
         }
         return mongoDatabase;
     }
 
+    // Serialization
+
+    BsonDocument toBson(Gson gson, Object object) {
+        long start = ClientInstrumentation.serializationStart();
+        try {
+            if (useCodecs) {
+                return DatabaseParser.toBsonDocument(gson, object);
+            }
+            return DatabaseParser.toBsonDocumentViaString(gson.toJsonTree(object));
+        } finally {
+            ClientInstrumentation.serializationEnd(start);
+        }
+    }
+
+    BsonDocument toBson(JsonElement json) {
+        long start = ClientInstrumentation.serializationStart();
+        try {
+            if (useCodecs) {
+                return DatabaseParser.toBsonDocument(json);
+            }
+            return DatabaseParser.toBsonDocumentViaString(json);
+        } finally {
+            ClientInstrumentation.serializationEnd(start);
+        }
+    }
+
+    /**
+     * Legacy decoding of a Document through its JSON string
+     */
+    <T> T fromDocument(Document document, Gson gson, Class<T> clazz) {
+        long start = ClientInstrumentation.serializationStart();
+        try {
+            return gson.fromJson(DatabaseParser.toJson(document), clazz);
+        } finally {
+            ClientInstrumentation.serializationEnd(start);
+        }
+    }
+
+    // Diff writes
+
+    private static EntityFingerprints requireFingerprints(EntityFingerprints fingerprints) {
+        if (fingerprints == null) { throw new IllegalStateException("Diff writes aren't enabled"); }
+        return fingerprints;
+    }
+
+    /**
+     * Updates the changed fields of the document plus fetch.latest, and remembers the new form once it's written
+     *
+     * @param offloaded top-level fields which were moved out of the document, and have to be unset if the previous form isn't known
+     */
+    private DiffWriteResult diffUpdate(DocumentStore store, EntityFingerprints fingerprints, int id, BsonDocument document, List<String> offloaded) {
+        long unix = System.currentTimeMillis() / 1000;
+        EntityFingerprints.Diff diff = fingerprints.diff(id, document);
+        BsonDocument update = new BsonDocument("$set", diff.getSet().clone().append("fetch.latest", new BsonInt64(unix)));
+        BsonDocument unset = diff.getUnset().clone();
+        if (diff.isFull()) {
+            unset.putAll(unsetDocument(offloaded));
+        }
+        if (!unset.isEmpty()) {
+            update.append("$unset", unset);
+        }
+        UpdateResult result;
+        try {
+            result = store.updateOne(new Document("_id", id), update, false);
+        } catch (MongoException e) {
+            fingerprints.invalidate(id);
+            throw e;
+        }
+        if (result.wasAcknowledged() && result.getMatchedCount() == 0) {
+            // Nothing to diff against anymore
+            fingerprints.invalidate(id);
+        } else {
+            fingerprints.commit(diff);
+        }
+        return new DiffWriteResult(result, diff);
+    }
+
+    private static BsonDocument unsetDocument(List<String> fields) {
+        BsonDocument unset = new BsonDocument();
+        for (String field : fields) {
+            unset.append(field, new BsonString(""));
+        }
+        return unset;
+    }
+
+    // Keyset pagination
+
+    private static final Document FETCH_LATEST_ORDER = new Document("fetch.latest", 1).append("_id", 1);
+
+    /**
+     * Seek condition for (fetch.latest, _id) > position
+     */
+    private static Bson changedAfter(KeysetPage.Position after) {
+        return Filters.or(
+                Filters.gt("fetch.latest", after.getFetchLatest()),
+                Filters.and(Filters.eq("fetch.latest", after.getFetchLatest()), Filters.gt("_id", after.getId())));
+    }
+
+    /**
+     * Loads one page (one extra document to know if there are more) and decodes it with the codec of the class
+     *
+     * @param projection projection of the view
+     * @param payloads   whether to put offloaded payloads back, <code>false</code> for entities without payloads
+     */
+    private <T> KeysetPage<T> page(DocumentStore store, Bson filter, Bson sort, Bson projection, EntityView view, KeysetPage.Position after, int limit, Class<T> clazz, boolean payloads) {
+        if (limit < 1) { throw new IllegalArgumentException("limit must be positive"); }
+        if (!view.includes("fetch.latest")) {
+            // The sort keys are needed for the next position. Views which include it (or all of fetch) already load it, and MongoDB 4.4+ rejects the colliding paths.
+            projection = Projections.fields(projection, Projections.include("fetch.latest"));
+        }
+        List<BsonDocument> documents = store.find(filter, projection, sort, limit + 1, BsonDocument.class);
+        boolean hasMore = documents.size() > limit;
+        if (hasMore) {
+            documents = documents.subList(0, limit);
+        }
+        if (documents.isEmpty()) {
+            return new KeysetPage<>(Collections.emptyList(), after, false);
+        }
+
+        BsonDocument last = documents.get(documents.size() - 1);
+        BsonDocument fetch = last.getDocument("fetch", new BsonDocument());
+        KeysetPage.Position next = new KeysetPage.Position(fetch.isNumber("latest") ? fetch.getNumber("latest").longValue() : after.getFetchLatest(), last.getNumber("_id").intValue());
+
+        if (payloads) {
+            payloadReader.restore(documents, view);
+        }
+        List<T> items = new ArrayList<>(documents.size());
+        for (BsonDocument document : documents) {
+            items.add(decode(document, clazz));
+        }
+        return new KeysetPage<>(items, next, hasMore);
+    }
+
+    // Bulk
+
+    <T> BulkWriteSummary bulkUpsert(DocumentStore store, Collection<? extends T> items, Gson gson, ToIntFunction<T> idFunction) {
+        BulkWriteSummary summary = new BulkWriteSummary();
+        List<WriteModel<Document>> models = new ArrayList<>();
+        List<Object> ids = new ArrayList<>();
+        for (T item : items) {
+            int id = idFunction.applyAsInt(item);
+            models.add(new UpdateOneModel<>(new Document("_id", id), new Document("$set", toBson(gson, item)), new UpdateOptions().upsert(true)));
+            ids.add(id);
+            if (models.size() >= bulkChunkSize) {
+                store.bulkWrite(models, ids, summary);
+                models.clear();
+                ids.clear();
+            }
+        }
+        if (!models.isEmpty()) {
+            store.bulkWrite(models, ids, summary);
+        }
+        return summary;
+    }
+
+    <T> List<T> findMany(DocumentStore store, Bson filter, Gson gson, Class<T> clazz) {
+        return findMany(store, filter, null, gson, clazz);
+    }
+
+    /**
+     * @param projection fields to load, or <code>null</code> for the whole documents
+     */
+    <T> List<T> findMany(DocumentStore store, Bson filter, Bson projection, Gson gson, Class<T> clazz) {
+        if (useCodecs) {
+            return store.find(filter, projection, null, 0, clazz);
+        }
+        List<T> list = new ArrayList<>();
+        for (Document document : store.find(filter, projection, null, 0, Document.class)) {
+            list.add(fromDocument(document, gson, clazz));
+        }
+        return list;
+    }
+
+    <T> LookupResult<T> findByIds(DocumentStore store, int[] ids, Gson gson, Class<T> clazz, ToIntFunction<T> idFunction) {
+        return findByIds(store, ids, null, gson, clazz, idFunction);
+    }
+
+    <T> LookupResult<T> findByIds(DocumentStore store, int[] ids, Bson projection, Gson gson, Class<T> clazz, ToIntFunction<T> idFunction) {
+        return findByIds(ids, idFunction, chunk -> findMany(store, Filters.in("_id", chunk), projection, gson, clazz));
+    }
+
+    /**
+     * @param loader loads the entities of one chunk of ids
+     */
+    private <T> LookupResult<T> findByIds(int[] ids, ToIntFunction<T> idFunction, Function<List<Integer>, List<T>> loader) {
+        LinkedHashMap<Integer, T> entities = new LinkedHashMap<>();
+        for (int id : ids) {
+            entities.put(id, null);
+        }
+
+        List<List<Integer>> chunks = new ArrayList<>();
+        List<Integer> chunk = new ArrayList<>();
+        for (Integer id : entities.keySet()) {
+            chunk.add(id);
+            if (chunk.size() >= lookupChunkSize) {
+                chunks.add(chunk);
+                chunk = new ArrayList<>();
+            }
+        }
+        if (!chunk.isEmpty()) {
+            chunks.add(chunk);
+        }
+
+        if (chunks.size() == 1) {
+            for (T entity : loader.apply(chunks.get(0))) {
+                entities.put(idFunction.applyAsInt(entity), entity);
+            }
+        } else if (chunks.size() > 1) {
+            List<CompletableFuture<List<T>>> futures = new ArrayList<>();
+            for (List<Integer> idChunk : chunks) {
+                futures.add(CompletableFuture.supplyAsync(() -> loader.apply(idChunk), lookupExecutor()));
+            }
+            try {
+                for (CompletableFuture<List<T>> future : futures) {
+                    for (T entity : future.join()) {
+                        entities.put(idFunction.applyAsInt(entity), entity);
+                    }
+                }
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException) { throw (RuntimeException) e.getCause(); }
+                throw e;
+            }
+        }
+        return new LookupResult<>(entities);
+    }
+
+    /**
+     * Opens a cursor over the raw documents and decodes each one only when it's requested
+     */
+    <T> EntityStream<T> stream(MongoCollection<Document> collection, Function<MongoCollection<RawBsonDocument>, FindIterable<RawBsonDocument>> query, Gson gson, Class<T> clazz) {
+        MongoCursor<RawBsonDocument> cursor = query.apply(collection.withDocumentClass(RawBsonDocument.class)).iterator();
+        return new EntityStream<>(cursor, rawDecoder(gson, clazz));
+    }
+
+    /**
+     * Decodes an already loaded document with the codec of the class
+     */
+    <T> T decode(BsonDocument document, Class<T> clazz) {
+        return DatabaseParser.decode(document, clazz);
+    }
+
+    /**
+     * Decodes an already loaded document with the codec of the class, or with Gson if codecs are disabled
+     */
+    <T> T decode(BsonDocument document, Gson gson, Class<T> clazz) {
+        if (useCodecs) {
+            return decode(document, clazz);
+        }
+        return fromDocument(DatabaseParser.CODEC.decode(new BsonDocumentReader(document), DecoderContext.builder().build()), gson, clazz);
+    }
+
+    <T> Function<RawBsonDocument, T> rawDecoder(Gson gson, Class<T> clazz) {
+        if (useCodecs) {
+            Codec<T> codec = DatabaseParser.SPIGET_CODEC_REGISTRY.get(clazz);
+            return raw -> raw.decode(codec);
+        }
+        return raw -> fromDocument(raw.decode(DatabaseParser.CODEC), gson, clazz);
+    }
+
+    <T> T findOne(DocumentStore store, Bson filter, Gson gson, Class<T> clazz) {
+        return findOne(store, filter, null, gson, clazz);
+    }
+
+    <T> T findOne(DocumentStore store, Bson filter, Bson projection, Gson gson, Class<T> clazz) {
+        if (useCodecs) {
+            return store.findFirst(filter, projection, clazz);
+        }
+        Document document = store.findFirst(filter, projection, Document.class);
+        if (document == null) { return null; }
+        return fromDocument(document, gson, clazz);
+    }
+
+    /**
+     * @return the store of the collection in the current storage backend
+     */
+    DocumentStore store(String name) {
+        StorageBackend storage = this.storage;
+        if (storage == null) { throw new IllegalStateException("Not connected"); }
+        return storage.getStore(name);
+    }
+
+    public StorageBackend getStorage() {
+        return storage;
+    }
+
+    /**
+     * Starts a {@link WriteSession} collecting writes to send as one bulk write per collection
+     */
+    public WriteSession startWriteSession() {
+        return new WriteSession(this);
+    }
+
+    ClientSession startClientSession() {
+        if (mongoClient == null) { throw new IllegalStateException("Not connected"); }
+        return mongoClient.startSession();
+    }
+
+    /**
+     * The configured MongoDB collection of a name, through the public collection getters so replaced collections are used
+     */
+    MongoCollection<Document> mongoCollection(String name) {
+        switch (name) {
+            case "authors":
+                return getAuthorsCollection();
+            case "resources":
+                return getResourcesCollection();
+            case "resource_versions":
+                return getResourceVersionsCollection();
+            case "resource_updates":
+                return getResourceUpdatesCollection();
+            case "resource_reviews":
+                return getResourceReviewsCollection();
+            case "resource_payloads":
+                return getResourcePayloadsCollection();
+            case "categories":
+                return getCategoriesCollection();
+            case "status":
+                return getStatusCollection();
+            case "webhooks":
+                return getWebhooksCollection();
+            case "metrics":
+                return getMetricsCollection();
+            case "update_requests":
+                return getUpdateRequestsCollection();
+            default:
+                return collection(name);
+        }
+    }
+
+    private MongoCollection<Document> collection(String name) {
+        return settings.configure(name, db().getCollection(name));
+    }
+
     public MongoCollection<Document> authorsCollection;
     public MongoCollection<Document> resourcesCollection;
     public MongoCollection<Document> resourceVersionsCollection;
@@ -291,55 +1538,61 @@ public class DatabaseClient {
     public MongoCollection<Document> webhooksCollection;
     public MongoCollection<Document> metricsCollection;
     public MongoCollection<Document> updateRequestsCollection;
+    public MongoCollection<Document> resourcePayloadsCollection;
 
     public MongoCollection<Document> getAuthorsCollection() {
         if (authorsCollection != null) { return authorsCollection; }
-        return authorsCollection = db().getCollection("authors");
+        return authorsCollection = collection("authors");
     }
 
     public MongoCollection<Document> getResourcesCollection() {
         if (resourcesCollection != null) { return resourcesCollection; }
-        return resourcesCollection = db().getCollection("resources");
+        return resourcesCollection = collection("resources");
     }
 
     public MongoCollection<Document> getResourceVersionsCollection() {
         if (resourceVersionsCollection != null) { return resourceVersionsCollection; }
-        return resourceVersionsCollection = db().getCollection("resource_versions");
+        return resourceVersionsCollection = collection("resource_versions");
     }
 
     public MongoCollection<Document> getResourceUpdatesCollection() {
         if (resourceUpdatesCollection != null) { return resourceUpdatesCollection; }
-        return resourceUpdatesCollection = db().getCollection("resource_updates");
+        return resourceUpdatesCollection = collection("resource_updates");
     }
 
     public MongoCollection<Document> getResourceReviewsCollection() {
         if (resourceReviewsCollection != null) { return resourceReviewsCollection; }
-        return resourceReviewsCollection = db().getCollection("resource_reviews");
+        return resourceReviewsCollection = collection("resource_reviews");
     }
 
     public MongoCollection<Document> getCategoriesCollection() {
         if (categoriesCollection != null) { return categoriesCollection; }
-        return categoriesCollection = db().getCollection("categories");
+        return categoriesCollection = collection("categories");
     }
 
     public MongoCollection<Document> getStatusCollection() {
         if (statusCollection != null) { return statusCollection; }
-        return statusCollection = db().getCollection("status");
+        return statusCollection = collection("status");
     }
 
     public MongoCollection<Document> getWebhooksCollection() {
         if (webhooksCollection != null) { return webhooksCollection; }
-        return webhooksCollection = db().getCollection("webhooks");
+        return webhooksCollection = collection("webhooks");
     }
 
     public MongoCollection<Document> getMetricsCollection() {
         if (metricsCollection != null) { return metricsCollection; }
-        return metricsCollection = db().getCollection("metrics");
+        return metricsCollection = collection("metrics");
+    }
+
+    public MongoCollection<Document> getResourcePayloadsCollection() {
+        if (resourcePayloadsCollection != null) { return resourcePayloadsCollection; }
+        return resourcePayloadsCollection = collection("resource_payloads");
     }
 
     public MongoCollection<Document> getUpdateRequestsCollection() {
         if (updateRequestsCollection != null) { return updateRequestsCollection; }
-        return updateRequestsCollection = db().getCollection("update_requests");
+        return updateRequestsCollection = collection("update_requests");
     }
 
 }
@@ -0,0 +1,261 @@
+package org.spiget.database;
+
+import com.mongodb.MongoClientSettings;
+import com.mongodb.MongoCompressor;
+import com.mongodb.ReadConcern;
+import com.mongodb.ReadPreference;
+import com.mongodb.WriteConcern;
+import com.mongodb.client.MongoCollection;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Connection and per-collection settings of a {@link DatabaseClient}, mapped onto {@link MongoClientSettings}.
+ * Anything left unset keeps the driver's default (or what the connection string specifies).
+ */
+public class DatabaseClientSettings {
+
+    /**
+     * Groups of collections which share a write concern
+     */
+    public enum OperationClass {
+        RESOURCES("resources", "resource_versions", "resource_updates", "resource_reviews", "resource_payloads", "authors", "categories"),
+        STATUS("status"),
+        WEBHOOKS("webhooks"),
+        METRICS("metrics"),
+        UPDATE_REQUESTS("update_requests");
+
+        private final List<String> collections;
+
+        OperationClass(String... collections) {
+            this.collections = Collections.unmodifiableList(Arrays.asList(collections));
+        }
+
+        public List<String> getCollections() {
+            return collections;
+        }
+
+        public static OperationClass of(String collection) {
+            for (OperationClass operationClass : values()) {
+                if (operationClass.collections.contains(collection)) {
+                    return operationClass;
+                }
+            }
+            return null;
+        }
+    }
+
+    public static final DatabaseClientSettings DEFAULT = builder().build();
+
+    private final Integer               minPoolSize;
+    private final Integer               maxPoolSize;
+    private final Long                  maxWaitTimeMillis;
+    private final Long                  maxConnectionIdleTimeMillis;
+    private final Integer               connectTimeoutMillis;
+    private final Integer               socketTimeoutMillis;
+    private final Long                  serverSelectionTimeoutMillis;
+    private final List<MongoCompressor> compressors;
+
+    private final Map<String, ReadPreference>       readPreferences;
+    private final Map<String, ReadConcern>          readConcerns;
+    private final Map<OperationClass, WriteConcern> writeConcerns;
+
+    private DatabaseClientSettings(Builder builder) {
+        this.minPoolSize = builder.minPoolSize;
+        this.maxPoolSize = builder.maxPoolSize;
+        this.maxWaitTimeMillis = builder.maxWaitTimeMillis;
+        this.maxConnectionIdleTimeMillis = builder.maxConnectionIdleTimeMillis;
+        this.connectTimeoutMillis = builder.connectTimeoutMillis;
+        this.socketTimeoutMillis = builder.socketTimeoutMillis;
+        this.serverSelectionTimeoutMillis = builder.serverSelectionTimeoutMillis;
+        this.compressors = Collections.unmodifiableList(new ArrayList<>(builder.compressors));
+        this.readPreferences = Collections.unmodifiableMap(new HashMap<>(builder.readPreferences));
+        this.readConcerns = Collections.unmodifiableMap(new HashMap<>(builder.readConcerns));
+        this.writeConcerns = Collections.unmodifiableMap(new EnumMap<>(builder.writeConcerns));
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * @param connectTimeoutMillis connect timeout to use if none is configured here, e.g. the one passed to {@link DatabaseClient#connect(int)}; ignored if not positive
+     */
+    void applyTo(MongoClientSettings.Builder settings, int connectTimeoutMillis) {
+        settings.applyToConnectionPoolSettings(pool -> {
+            if (minPoolSize != null) { pool.minSize(minPoolSize); }
+            if (maxPoolSize != null) { pool.maxSize(maxPoolSize); }
+            if (maxWaitTimeMillis != null) { pool.maxWaitTime(maxWaitTimeMillis, TimeUnit.MILLISECONDS); }
+            if (maxConnectionIdleTimeMillis != null) { pool.maxConnectionIdleTime(maxConnectionIdleTimeMillis, TimeUnit.MILLISECONDS); }
+        });
+        settings.applyToSocketSettings(socket -> {
+            if (this.connectTimeoutMillis != null) {
+                socket.connectTimeout(this.connectTimeoutMillis, TimeUnit.MILLISECONDS);
+            } else if (connectTimeoutMillis > 0) {
+                socket.connectTimeout(connectTimeoutMillis, TimeUnit.MILLISECONDS);
+            }
+            if (socketTimeoutMillis != null) { socket.readTimeout(socketTimeoutMillis, TimeUnit.MILLISECONDS); }
+        });
+        if (serverSelectionTimeoutMillis != null) {
+            settings.applyToClusterSettings(cluster -> cluster.serverSelectionTimeout(serverSelectionTimeoutMillis, TimeUnit.MILLISECONDS));
+        }
+        if (!compressors.isEmpty()) {
+            settings.compressorList(compressors);
+        }
+    }
+
+    /**
+     * Applies the read preference, read concern and write concern configured for the collection
+     */
+    <T> MongoCollection<T> configure(String collectionName, MongoCollection<T> collection) {
+        ReadPreference readPreference = readPreferences.get(collectionName);
+        if (readPreference != null) { collection = collection.withReadPreference(readPreference); }
+        ReadConcern readConcern = readConcerns.get(collectionName);
+        if (readConcern != null) { collection = collection.withReadConcern(readConcern); }
+        OperationClass operationClass = OperationClass.of(collectionName);
+        if (operationClass != null) {
+            WriteConcern writeConcern = writeConcerns.get(operationClass);
+            if (writeConcern != null) { collection = collection.withWriteConcern(writeConcern); }
+        }
+        return collection;
+    }
+
+    /**
+     * Same as {@link #configure(String, MongoCollection)}, for the collections of the {@link AsyncDatabaseClient}
+     */
+    <T> com.mongodb.reactivestreams.client.MongoCollection<T> configure(String collectionName, com.mongodb.reactivestreams.client.MongoCollection<T> collection) {
+        ReadPreference readPreference = readPreferences.get(collectionName);
+        if (readPreference != null) { collection = collection.withReadPreference(readPreference); }
+        ReadConcern readConcern = readConcerns.get(collectionName);
+        if (readConcern != null) { collection = collection.withReadConcern(readConcern); }
+        OperationClass operationClass = OperationClass.of(collectionName);
+        if (operationClass != null) {
+            WriteConcern writeConcern = writeConcerns.get(operationClass);
+            if (writeConcern != null) { collection = collection.withWriteConcern(writeConcern); }
+        }
+        return collection;
+    }
+
+    public WriteConcern getWriteConcern(OperationClass operationClass) {
+        return writeConcerns.get(operationClass);
+    }
+
+    public ReadPreference getReadPreference(String collection) {
+        return readPreferences.get(collection);
+    }
+
+    public ReadConcern getReadConcern(String collection) {
+        return readConcerns.get(collection);
+    }
+
+    public static class Builder {
+
+        private Integer               minPoolSize;
+        private Integer               maxPoolSize;
+        private Long                  maxWaitTimeMillis;
+        private Long                  maxConnectionIdleTimeMillis;
+        private Integer               connectTimeoutMillis;
+        private Integer               socketTimeoutMillis;
+        private Long                  serverSelectionTimeoutMillis;
+        private final List<MongoCompressor> compressors = new ArrayList<>();
+
+        private final Map<String, ReadPreference>       readPreferences = new HashMap<>();
+        private final Map<String, ReadConcern>          readConcerns    = new HashMap<>();
+        private final Map<OperationClass, WriteConcern> writeConcerns   = new EnumMap<>(OperationClass.class);
+
+        private Builder() {
+        }
+
+        public Builder minPoolSize(int minPoolSize) {
+            this.minPoolSize = minPoolSize;
+            return this;
+        }
+
+        public Builder maxPoolSize(int maxPoolSize) {
+            this.maxPoolSize = maxPoolSize;
+            return this;
+        }
+
+        /**
+         * Maximum time an operation waits for a pooled connection
+         */
+        public Builder maxWaitTime(long maxWaitTime, TimeUnit unit) {
+            this.maxWaitTimeMillis = unit.toMillis(maxWaitTime);
+            return this;
+        }
+
+        public Builder maxConnectionIdleTime(long maxConnectionIdleTime, TimeUnit unit) {
+            this.maxConnectionIdleTimeMillis = unit.toMillis(maxConnectionIdleTime);
+            return this;
+        }
+
+        /**
+         * Overrides the timeout passed to {@link DatabaseClient#connect(int)}
+         */
+        public Builder connectTimeout(long connectTimeout, TimeUnit unit) {
+            this.connectTimeoutMillis = (int) unit.toMillis(connectTimeout);
+            return this;
+        }
+
+        public Builder socketTimeout(long socketTimeout, TimeUnit unit) {
+            this.socketTimeoutMillis = (int) unit.toMillis(socketTimeout);
+            return this;
+        }
+
+        public Builder serverSelectionTimeout(long serverSelectionTimeout, TimeUnit unit) {
+            this.serverSelectionTimeoutMillis = unit.toMillis(serverSelectionTimeout);
+            return this;
+        }
+
+        /**
+         * Enables zstd wire compression. Requires <code>com.github.luben:zstd-jni</code> at runtime.
+         */
+        public Builder zstdCompression() {
+            compressors.add(MongoCompressor.createZstdCompressor());
+            return this;
+        }
+
+        /**
+         * Enables snappy wire compression. Requires <code>org.xerial.snappy:snappy-java</code> at runtime.
+         */
+        public Builder snappyCompression() {
+            compressors.add(MongoCompressor.createSnappyCompressor());
+            return this;
+        }
+
+        public Builder zlibCompression() {
+            compressors.add(MongoCompressor.createZlibCompressor());
+            return this;
+        }
+
+        public Builder readPreference(String collection, ReadPreference readPreference) {
+            readPreferences.put(collection, readPreference);
+            return this;
+        }
+
+        public Builder readConcern(String collection, ReadConcern readConcern) {
+            readConcerns.put(collection, readConcern);
+            return this;
+        }
+
+        /**
+         * Write concern for all collections of the operation class, e.g. <code>W1</code> for {@link OperationClass#STATUS} and {@link OperationClass#METRICS} while {@link OperationClass#RESOURCES} stays <code>MAJORITY</code>
+         */
+        public Builder writeConcern(OperationClass operationClass, WriteConcern writeConcern) {
+            writeConcerns.put(operationClass, writeConcern);
+            return this;
+        }
+
+        public DatabaseClientSettings build() {
+            return new DatabaseClientSettings(this);
+        }
+    }
+
+}
@@ -0,0 +1,156 @@
+package org.spiget.database;
+
+import com.mongodb.MongoException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.IndexOptions;
+import io.sentry.Sentry;
+import lombok.extern.log4j.Log4j2;
+import org.apache.logging.log4j.Level;
+import org.bson.Document;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Indexes the queries of {@link DatabaseClient} rely on
+ */
+@Log4j2
+public class DatabaseIndexes {
+
+    static final List<RequiredIndex> REQUIRED = new ArrayList<>();
+
+    static {
+        // updateStatus / getStatus / renameStatus; unique so concurrent upserts can't create duplicates
+        REQUIRED.add(new RequiredIndex("status", new Document("key", 1), new IndexOptions().unique(true)));
+        // getWebhooks(eventType)
+        REQUIRED.add(new RequiredIndex("webhooks", new Document("events", 1), new IndexOptions()));
+        // getUpdateRequests sort, UpdateRequestQueue#claim
+        REQUIRED.add(new RequiredIndex("update_requests", new Document("requested", 1), new IndexOptions()));
+        // deleteUpdateRequest, UpdateRequestQueue#enqueue
+        REQUIRED.add(new RequiredIndex("update_requests", new Document("requestedId", 1), new IndexOptions()));
+        // UpdateRequestQueue#enqueue: at most one waiting (unclaimed) request per requestedId, even with concurrent enqueues
+        REQUIRED.add(new RequiredIndex("update_requests", new Document("requestedId", 1).append(UpdateRequestQueue.PENDING_FIELD, 1), new IndexOptions().unique(true).partialFilterExpression(new Document(UpdateRequestQueue.PENDING_FIELD, true))));
+        // getResourcesChangedSince / getAuthorsChangedSince seek on (fetch.latest, _id); listResources / listAuthors use the _id index
+        REQUIRED.add(new RequiredIndex("resources", new Document("fetch.latest", 1).append("_id", 1), new IndexOptions()));
+        REQUIRED.add(new RequiredIndex("authors", new Document("fetch.latest", 1).append("_id", 1), new IndexOptions()));
+    }
+
+    /**
+     * Checks all required indexes and optionally creates the missing ones
+     *
+     * @return the indexes which were missing (or had the wrong options), whether or not they could be created
+     */
+    static List<IndexStatus> ensure(DatabaseClient client, boolean create) {
+        List<IndexStatus> missing = new ArrayList<>();
+        for (RequiredIndex index : REQUIRED) {
+            MongoCollection<Document> collection = client.db().getCollection(index.collection);
+
+            Document existing = null;
+            for (Document document : collection.listIndexes()) {
+                if (sameKeys(document.get("key", Document.class), index.keys)) {
+                    existing = document;
+                    break;
+                }
+            }
+            if (existing != null) {
+                if (index.options.isUnique() && !existing.getBoolean("unique", false)) {
+                    log.warn("Index " + index + " exists but is not unique, it has to be recreated manually");
+                    missing.add(new IndexStatus(index, false, "exists but is not unique"));
+                }
+                continue;
+            }
+
+            if (!create) {
+                log.warn("Missing index " + index);
+                missing.add(new IndexStatus(index, false, "missing"));
+                continue;
+            }
+            try {
+                log.info("Creating missing index " + index);
+                collection.createIndex(index.keys, index.options);
+                missing.add(new IndexStatus(index, true, "created"));
+            } catch (MongoException e) {
+                Sentry.captureException(e);
+                log.log(Level.WARN, "Failed to create index " + index, e);
+                missing.add(new IndexStatus(index, false, e.getMessage()));
+            }
+        }
+        return missing;
+    }
+
+    static boolean sameKeys(Document a, Document b) {
+        if (a == null || b == null || a.size() != b.size()) { return false; }
+        List<Map.Entry<String, Object>> entriesA = new ArrayList<>(a.entrySet());
+        List<Map.Entry<String, Object>> entriesB = new ArrayList<>(b.entrySet());
+        for (int i = 0; i < entriesA.size(); i++) {
+            Map.Entry<String, Object> entryA = entriesA.get(i);
+            Map.Entry<String, Object> entryB = entriesB.get(i);
+            if (!entryA.getKey().equals(entryB.getKey())) { return false; }
+            Object valueA = entryA.getValue();
+            Object valueB = entryB.getValue();
+            if (valueA instanceof Number && valueB instanceof Number) {
+                if (((Number) valueA).intValue() != ((Number) valueB).intValue()) { return false; }
+            } else if (!Objects.equals(valueA, valueB)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static class RequiredIndex {
+
+        final String       collection;
+        final Document     keys;
+        final IndexOptions options;
+
+        RequiredIndex(String collection, Document keys, IndexOptions options) {
+            this.collection = collection;
+            this.keys = keys;
+            this.options = options;
+        }
+
+        @Override
+        public String toString() {
+            return collection + keys.toJson() + (options.isUnique() ? " (unique)" : "");
+        }
+    }
+
+    /**
+     * An index that {@link DatabaseClient#ensureIndexes(boolean)} found missing
+     */
+    public static class IndexStatus {
+
+        private final String  index;
+        private final boolean created;
+        private final String  message;
+
+        IndexStatus(RequiredIndex index, boolean created, String message) {
+            this.index = index.toString();
+            this.created = created;
+            this.message = message;
+        }
+
+        /**
+         * @return collection and keys of the index
+         */
+        public String getIndex() {
+            return index;
+        }
+
+        public boolean isCreated() {
+            return created;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+
+        @Override
+        public String toString() {
+            return index + ": " + message;
+        }
+    }
+
+}
@@ -1,19 +1,37 @@
 package org.spiget.database;
 
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
 import com.mongodb.MongoClientSettings;
+import org.bson.BsonDocument;
+import org.bson.BsonDocumentReader;
+import org.bson.BsonDocumentWriter;
+import org.bson.BsonReader;
+import org.bson.BsonType;
 import org.bson.Document;
 import org.bson.codecs.BsonTypeClassMap;
+import org.bson.codecs.DecoderContext;
 import org.bson.codecs.DocumentCodec;
 import org.bson.codecs.configuration.CodecRegistries;
 import org.bson.codecs.configuration.CodecRegistry;
 
+import java.time.Instant;
+import java.time.format.DateTimeFormatter;
+
 public class DatabaseParser {
 
-	final static CodecRegistry CODEC_REGISTRY = CodecRegistries.fromRegistries(MongoClientSettings.getDefaultCodecRegistry());
-	final static DocumentCodec CODEC          = new DocumentCodec(CODEC_REGISTRY, new BsonTypeClassMap());
+	final static CodecRegistry CODEC_REGISTRY        = CodecRegistries.fromRegistries(MongoClientSettings.getDefaultCodecRegistry());
+	final static DocumentCodec CODEC                 = new DocumentCodec(CODEC_REGISTRY, new BsonTypeClassMap());
+	final static CodecRegistry SPIGET_CODEC_REGISTRY = CodecRegistries.fromRegistries(CodecRegistries.fromProviders(new SpigetCodecProvider()), MongoClientSettings.getDefaultCodecRegistry());
+
+	// Plain JsonElements are written with their nulls, the same as JsonElement#toString() does
+	final static Gson ELEMENT_GSON = new GsonBuilder().serializeNulls().create();
 
 	public static JsonObject toJson(Document document) {
 		if (document == null) { return null; }
@@ -24,4 +42,92 @@ public class DatabaseParser {
 		return Document.parse(jsonObject.toString(), CODEC);
 	}
 
+	/**
+	 * Serializes the object with the given Gson instance directly into a {@link BsonDocument}
+	 */
+	public static BsonDocument toBsonDocument(Gson gson, Object object) {
+		BsonDocument document = new BsonDocument();
+		gson.toJson(object, object.getClass(), new BsonJsonWriter(new BsonDocumentWriter(document)));
+		return document;
+	}
+
+	/**
+	 * Writes the JsonElement directly into a {@link BsonDocument}
+	 */
+	public static BsonDocument toBsonDocument(JsonElement jsonElement) {
+		BsonDocument document = new BsonDocument();
+		ELEMENT_GSON.toJson(jsonElement, new BsonJsonWriter(new BsonDocumentWriter(document)));
+		return document;
+	}
+
+	/**
+	 * Legacy variant of {@link #toBsonDocument(Gson, Object)}, going through the JSON string
+	 */
+	public static BsonDocument toBsonDocumentViaString(JsonElement jsonElement) {
+		return BsonDocument.parse(jsonElement.toString());
+	}
+
+	/**
+	 * Decodes an already loaded document with the codec of the class
+	 */
+	static <T> T decode(BsonDocument document, Class<T> clazz) {
+		return SPIGET_CODEC_REGISTRY.get(clazz).decode(new BsonDocumentReader(document), DecoderContext.builder().build());
+	}
+
+	/**
+	 * Reads the next document from the reader into a JsonObject, with the same shape {@link #toJson(Document)} produces
+	 */
+	public static JsonObject toJson(BsonReader reader) {
+		JsonObject object = new JsonObject();
+		reader.readStartDocument();
+		while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+			String name = reader.readName();
+			object.add(name, readValue(reader));
+		}
+		reader.readEndDocument();
+		return object;
+	}
+
+	static JsonElement readValue(BsonReader reader) {
+		switch (reader.getCurrentBsonType()) {
+			case DOCUMENT:
+				return toJson(reader);
+			case ARRAY:
+				JsonArray array = new JsonArray();
+				reader.readStartArray();
+				while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+					array.add(readValue(reader));
+				}
+				reader.readEndArray();
+				return array;
+			case STRING:
+				return new JsonPrimitive(reader.readString());
+			case INT32:
+				return new JsonPrimitive(reader.readInt32());
+			case INT64:
+				return new JsonPrimitive(reader.readInt64());
+			case DOUBLE:
+				return new JsonPrimitive(reader.readDouble());
+			case DECIMAL128:
+				return new JsonPrimitive(reader.readDecimal128().bigDecimalValue());
+			case BOOLEAN:
+				return new JsonPrimitive(reader.readBoolean());
+			case OBJECT_ID:
+				JsonObject objectId = new JsonObject();
+				objectId.addProperty("$oid", reader.readObjectId().toHexString());
+				return objectId;
+			case DATE_TIME:
+				JsonObject date = new JsonObject();
+				date.addProperty("$date", DateTimeFormatter.ISO_INSTANT.format(Instant.ofEpochMilli(reader.readDateTime())));
+				return date;
+			case NULL:
+				reader.readNull();
+				return JsonNull.INSTANCE;
+			default:
+				// No JSON counterpart the data model could use
+				reader.skipValue();
+				return JsonNull.INSTANCE;
+		}
+	}
+
 }
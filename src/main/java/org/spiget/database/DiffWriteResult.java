@@ -0,0 +1,62 @@
+package org.spiget.database;
+
+import com.mongodb.client.result.UpdateResult;
+
+import java.util.List;
+
+/**
+ * Result of a diffing update: the driver's result plus the top-level fields which were actually written
+ */
+public class DiffWriteResult {
+
+    private final UpdateResult            updateResult;
+    private final EntityFingerprints.Diff diff;
+
+    DiffWriteResult(UpdateResult updateResult, EntityFingerprints.Diff diff) {
+        this.updateResult = updateResult;
+        this.diff = diff;
+    }
+
+    public UpdateResult getUpdateResult() {
+        return updateResult;
+    }
+
+    /**
+     * @return fields which were <code>$set</code>, all of them if {@link #isFull()}
+     */
+    public List<String> getChangedFields() {
+        return diff.getChangedFields();
+    }
+
+    /**
+     * @return fields which were <code>$unset</code>
+     */
+    public List<String> getRemovedFields() {
+        return diff.getRemovedFields();
+    }
+
+    /**
+     * @return <code>true</code> if the entity wasn't known yet and was written completely
+     */
+    public boolean isFull() {
+        return diff.isFull();
+    }
+
+    /**
+     * @return <code>true</code> if only <code>fetch.latest</code> was written
+     */
+    public boolean isUnchanged() {
+        return diff.isUnchanged();
+    }
+
+    @Override
+    public String toString() {
+        return "DiffWriteResult{" +
+                "matched=" + (updateResult.wasAcknowledged() ? updateResult.getMatchedCount() : -1) +
+                ", full=" + isFull() +
+                ", changed=" + getChangedFields() +
+                ", removed=" + getRemovedFields() +
+                '}';
+    }
+
+}
@@ -0,0 +1,64 @@
+package org.spiget.database;
+
+import com.mongodb.client.model.WriteModel;
+import com.mongodb.client.result.DeleteResult;
+import com.mongodb.client.result.UpdateResult;
+import org.bson.BsonDocument;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+
+import java.util.List;
+
+/**
+ * The operations {@link DatabaseClient} runs against one collection.
+ * Filters, updates, projections and sorts are regular MongoDB documents; backends other than MongoDB support the subset the client uses
+ * (equality, <code>$in</code>, <code>$ne</code>, <code>$exists</code>, range operators, <code>$and</code>/<code>$or</code>; <code>$set</code>, <code>$unset</code>, <code>$setOnInsert</code>, <code>$inc</code>).
+ */
+public interface DocumentStore {
+
+    String getName();
+
+    /**
+     * @param projection fields to load, or <code>null</code>
+     * @param sort       sort order, or <code>null</code>
+     * @param limit      maximum number of documents, or 0 for all
+     * @param clazz      class to decode the documents into with the client's codecs
+     */
+    <T> List<T> find(Bson filter, Bson projection, Bson sort, int limit, Class<T> clazz);
+
+    default <T> T findFirst(Bson filter, Bson projection, Class<T> clazz) {
+        List<T> list = find(filter, projection, null, 1, clazz);
+        return list.isEmpty() ? null : list.get(0);
+    }
+
+    /**
+     * @return number of documents matching the filter
+     */
+    default long count(Bson filter) {
+        return find(filter, new Document("_id", 1), null, 0, BsonDocument.class).size();
+    }
+
+    void insertOne(BsonDocument document);
+
+    UpdateResult updateOne(Bson filter, Bson update, boolean upsert);
+
+    /**
+     * Atomically updates the first document matching the filter in sort order
+     *
+     * @param sort sort order, or <code>null</code>
+     * @return the document after the update, or <code>null</code> if none matched
+     */
+    <T> T findOneAndUpdate(Bson filter, Bson update, Bson sort, Class<T> clazz);
+
+    DeleteResult deleteOne(Bson filter);
+
+    DeleteResult deleteMany(Bson filter);
+
+    /**
+     * Runs the models as one unordered bulk write and folds the result into the summary. Failures are recorded per item instead of being thrown.
+     *
+     * @param ids the _id of each model, used to report errors by item
+     */
+    void bulkWrite(List<? extends WriteModel<Document>> models, List<?> ids, BulkWriteSummary summary);
+
+}
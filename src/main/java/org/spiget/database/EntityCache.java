@@ -0,0 +1,218 @@
+package org.spiget.database;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntFunction;
+
+/**
+ * Bounded read-through cache keyed by primitive int ids.
+ * Entries are evicted least-recently-used once <code>maxSize</code> is exceeded and expire after their TTL.
+ * Missing ids (a loader returning <code>null</code>) are cached as well, with their own TTL.
+ * <p>
+ * Cached objects are shared between callers and must not be modified.
+ */
+public class EntityCache<V> {
+
+    private final int  maxSize;
+    private final long ttlNanos;
+    private final long negativeTtlNanos;
+
+    private final Entry<V>[] table;
+    private final int        mask;
+    // Sentinel of the circular access-order list, head.after is the most recently used entry
+    private final Entry<V>   head = new Entry<>(0, null, 0);
+    private       int        size;
+    // Token of the latest load in flight per id; invalidating the id drops it, so loads which raced with a write aren't cached
+    private final Map<Integer, Object> loading = new HashMap<>();
+
+    private long hitCount;
+    private long missCount;
+    private long evictionCount;
+    private long expirationCount;
+
+    @SuppressWarnings("unchecked")
+    public EntityCache(int maxSize, long ttl, long negativeTtl, TimeUnit unit) {
+        if (maxSize < 1) { throw new IllegalArgumentException("maxSize must be positive"); }
+        this.maxSize = maxSize;
+        this.ttlNanos = unit.toNanos(ttl);
+        this.negativeTtlNanos = unit.toNanos(negativeTtl);
+
+        int capacity = Integer.highestOneBit(Math.max(2, maxSize + maxSize / 3) - 1) << 1;
+        this.table = (Entry<V>[]) new Entry[capacity];
+        this.mask = capacity - 1;
+        head.before = head.after = head;
+    }
+
+    /**
+     * Returns the cached value for the id, or loads (and caches) it with the loader
+     *
+     * @return the value, or <code>null</code> if the loader didn't find it
+     */
+    public V get(int key, IntFunction<V> loader) {
+        Object token = new Object();
+        synchronized (this) {
+            Entry<V> entry = find(key);
+            if (entry != null) {
+                if (entry.expires - System.nanoTime() > 0) {
+                    unlinkOrder(entry);
+                    linkFirst(entry);
+                    hitCount++;
+                    return entry.value;
+                }
+                remove(entry);
+                expirationCount++;
+            }
+            missCount++;
+            loading.put(key, token);
+        }
+
+        V value = null;
+        boolean loaded = false;
+        try {
+            value = loader.apply(key);
+            loaded = true;
+            return value;
+        } finally {
+            synchronized (this) {
+                // Only the latest load of the id is cached, and only if the id wasn't invalidated since it started
+                if (loading.remove(key, token) && loaded) {
+                    put(key, value);
+                }
+            }
+        }
+    }
+
+    public synchronized void invalidate(int key) {
+        loading.remove(key);
+        Entry<V> entry = find(key);
+        if (entry != null) {
+            remove(entry);
+        }
+    }
+
+    public synchronized void invalidateAll() {
+        loading.clear();
+        for (int i = 0; i < table.length; i++) {
+            table[i] = null;
+        }
+        head.before = head.after = head;
+        size = 0;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * @return number of entries removed to stay within the size bound
+     */
+    public synchronized long getEvictionCount() {
+        return evictionCount;
+    }
+
+    /**
+     * @return number of entries dropped because their TTL ran out
+     */
+    public synchronized long getExpirationCount() {
+        return expirationCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "EntityCache{size=" + size + "/" + maxSize + ", hits=" + hitCount + ", misses=" + missCount + ", evictions=" + evictionCount + ", expirations=" + expirationCount + "}";
+    }
+
+    private static int hash(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private Entry<V> find(int key) {
+        Entry<V> entry = table[hash(key) & mask];
+        while (entry != null && entry.key != key) {
+            entry = entry.next;
+        }
+        return entry;
+    }
+
+    private void put(int key, V value) {
+        long expires = System.nanoTime() + (value == null ? negativeTtlNanos : ttlNanos);
+        Entry<V> entry = find(key);
+        if (entry != null) {
+            entry.value = value;
+            entry.expires = expires;
+            unlinkOrder(entry);
+            linkFirst(entry);
+            return;
+        }
+
+        int index = hash(key) & mask;
+        entry = new Entry<>(key, value, expires);
+        entry.next = table[index];
+        table[index] = entry;
+        linkFirst(entry);
+        size++;
+
+        if (size > maxSize) {
+            remove(head.before);
+            evictionCount++;
+        }
+    }
+
+    private void remove(Entry<V> entry) {
+        int index = hash(entry.key) & mask;
+        Entry<V> current = table[index];
+        Entry<V> previous = null;
+        while (current != null && current != entry) {
+            previous = current;
+            current = current.next;
+        }
+        if (current == null) { return; }
+        if (previous == null) {
+            table[index] = entry.next;
+        } else {
+            previous.next = entry.next;
+        }
+        unlinkOrder(entry);
+        size--;
+    }
+
+    private void linkFirst(Entry<V> entry) {
+        entry.before = head;
+        entry.after = head.after;
+        head.after.before = entry;
+        head.after = entry;
+    }
+
+    private void unlinkOrder(Entry<V> entry) {
+        entry.before.after = entry.after;
+        entry.after.before = entry.before;
+        entry.before = entry.after = null;
+    }
+
+    private static class Entry<V> {
+
+        final int  key;
+        V          value;
+        long       expires;
+        Entry<V>   next;
+        Entry<V>   before;
+        Entry<V>   after;
+
+        Entry(int key, V value, long expires) {
+            this.key = key;
+            this.value = value;
+            this.expires = expires;
+        }
+    }
+
+}
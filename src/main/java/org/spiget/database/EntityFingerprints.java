@@ -0,0 +1,174 @@
+package org.spiget.database;
+
+import org.bson.BsonBinaryWriter;
+import org.bson.BsonDocument;
+import org.bson.BsonString;
+import org.bson.BsonValue;
+import org.bson.codecs.BsonDocumentCodec;
+import org.bson.codecs.EncoderContext;
+import org.bson.io.BasicOutputBuffer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Remembers a 64-bit hash of every top-level field of the last form of an entity this client persisted, to turn a full <code>$set</code> into a field-level diff.
+ * At most <code>maxSize</code> entities are tracked, least recently written ones are forgotten first.
+ * <p>
+ * The hashes only reflect this client's own writes: entities which are also modified by other writers should be {@link #invalidate(int) invalidated}.
+ */
+public class EntityFingerprints {
+
+    private static final BsonDocumentCodec CODEC    = new BsonDocumentCodec();
+    private static final EncoderContext    CONTEXT  = EncoderContext.builder().build();
+    private static final long              FNV_SEED = 0xcbf29ce484222325L;
+    private static final long              FNV_PRIME = 0x100000001b3L;
+
+    private final Map<Integer, Map<String, Long>> fingerprints;
+
+    public EntityFingerprints(int maxSize) {
+        if (maxSize < 1) { throw new IllegalArgumentException("maxSize must be positive"); }
+        this.fingerprints = new LinkedHashMap<Integer, Map<String, Long>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, Map<String, Long>> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * Compares the document to the last persisted form of the entity
+     *
+     * @param document the complete serialized form of the entity
+     */
+    public Diff diff(int id, BsonDocument document) {
+        Map<String, Long> hashes = fingerprint(document);
+        Map<String, Long> previous;
+        synchronized (this) {
+            previous = fingerprints.get(id);
+        }
+        if (previous == null) {
+            return new Diff(id, hashes, document, new BsonDocument(), new ArrayList<>(document.keySet()), Collections.emptyList(), true);
+        }
+
+        BsonDocument set = new BsonDocument();
+        List<String> changed = new ArrayList<>();
+        for (Map.Entry<String, BsonValue> entry : document.entrySet()) {
+            if (!hashes.get(entry.getKey()).equals(previous.get(entry.getKey()))) {
+                set.append(entry.getKey(), entry.getValue());
+                changed.add(entry.getKey());
+            }
+        }
+        BsonDocument unset = new BsonDocument();
+        List<String> removed = new ArrayList<>();
+        for (String field : previous.keySet()) {
+            if (!hashes.containsKey(field)) {
+                unset.append(field, new BsonString(""));
+                removed.add(field);
+            }
+        }
+        return new Diff(id, hashes, set, unset, changed, removed, false);
+    }
+
+    /**
+     * Records the diffed form as persisted, once the write succeeded
+     */
+    public synchronized void commit(Diff diff) {
+        fingerprints.put(diff.id, diff.hashes);
+    }
+
+    public synchronized void invalidate(int id) {
+        fingerprints.remove(id);
+    }
+
+    public synchronized void invalidateAll() {
+        fingerprints.clear();
+    }
+
+    public synchronized int size() {
+        return fingerprints.size();
+    }
+
+    static Map<String, Long> fingerprint(BsonDocument document) {
+        Map<String, Long> hashes = new HashMap<>();
+        for (Map.Entry<String, BsonValue> entry : document.entrySet()) {
+            hashes.put(entry.getKey(), hash(entry.getValue()));
+        }
+        return hashes;
+    }
+
+    static long hash(BsonValue value) {
+        // Hash the binary encoding of {"": value}, which also covers the value's type
+        BasicOutputBuffer buffer = new BasicOutputBuffer();
+        CODEC.encode(new BsonBinaryWriter(buffer), new BsonDocument("", value), CONTEXT);
+        long hash = FNV_SEED;
+        byte[] bytes = buffer.getInternalBuffer();
+        for (int i = 0, size = buffer.getSize(); i < size; i++) {
+            hash ^= bytes[i] & 0xff;
+            hash *= FNV_PRIME;
+        }
+        return hash;
+    }
+
+    /**
+     * Field-level difference between an entity's new form and its last persisted one
+     */
+    public static class Diff {
+
+        private final int               id;
+        private final Map<String, Long> hashes;
+        private final BsonDocument      set;
+        private final BsonDocument      unset;
+        private final List<String>      changedFields;
+        private final List<String>      removedFields;
+        private final boolean           full;
+
+        Diff(int id, Map<String, Long> hashes, BsonDocument set, BsonDocument unset, List<String> changedFields, List<String> removedFields, boolean full) {
+            this.id = id;
+            this.hashes = hashes;
+            this.set = set;
+            this.unset = unset;
+            this.changedFields = Collections.unmodifiableList(changedFields);
+            this.removedFields = Collections.unmodifiableList(removedFields);
+            this.full = full;
+        }
+
+        /**
+         * @return the fields to <code>$set</code>
+         */
+        public BsonDocument getSet() {
+            return set;
+        }
+
+        /**
+         * @return the fields to <code>$unset</code>
+         */
+        public BsonDocument getUnset() {
+            return unset;
+        }
+
+        public List<String> getChangedFields() {
+            return changedFields;
+        }
+
+        public List<String> getRemovedFields() {
+            return removedFields;
+        }
+
+        /**
+         * @return <code>true</code> if there was no previous form to compare with, so every field is written
+         */
+        public boolean isFull() {
+            return full;
+        }
+
+        public boolean isUnchanged() {
+            return !full && changedFields.isEmpty() && removedFields.isEmpty();
+        }
+    }
+
+}
@@ -0,0 +1,91 @@
+package org.spiget.database;
+
+import com.mongodb.client.MongoCursor;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Lazily decoding iterator over a Mongo cursor. Documents are fetched one batch at a time and only decoded when they're requested.
+ * Must be closed (or fully consumed) to release the server-side cursor.
+ */
+public class EntityStream<T> implements Iterator<T>, Closeable {
+
+    private final MongoCursor<?>                  cursor;
+    private final Function<Object, T>             decoder;
+    private final int                             batchSize;
+    private final Function<List<Object>, List<T>> batchDecoder;
+
+    // Decoded entities of the current batch, if decoding batch-wise
+    private Iterator<T> buffer = Collections.emptyIterator();
+
+    @SuppressWarnings("unchecked")
+    <R> EntityStream(MongoCursor<R> cursor, Function<R, T> decoder) {
+        this.cursor = cursor;
+        this.decoder = (Function<Object, T>) decoder;
+        this.batchSize = 0;
+        this.batchDecoder = null;
+    }
+
+    @SuppressWarnings("unchecked")
+    private <R> EntityStream(MongoCursor<R> cursor, int batchSize, Function<List<R>, List<T>> batchDecoder) {
+        this.cursor = cursor;
+        this.decoder = null;
+        this.batchSize = batchSize;
+        this.batchDecoder = (Function<List<Object>, List<T>>) (Function<?, ?>) batchDecoder;
+    }
+
+    /**
+     * Stream which decodes up to <code>batchSize</code> documents at once, for decoding steps which need a query of their own
+     */
+    static <R, T> EntityStream<T> batched(MongoCursor<R> cursor, int batchSize, Function<List<R>, List<T>> batchDecoder) {
+        if (batchSize < 1) { throw new IllegalArgumentException("batchSize must be positive"); }
+        return new EntityStream<>(cursor, batchSize, batchDecoder);
+    }
+
+    @Override
+    public boolean hasNext() {
+        return buffer.hasNext() || cursor.hasNext();
+    }
+
+    @Override
+    public T next() {
+        if (batchDecoder == null) {
+            if (!cursor.hasNext()) { throw new NoSuchElementException(); }
+            return decoder.apply(cursor.next());
+        }
+        if (!buffer.hasNext()) {
+            if (!cursor.hasNext()) { throw new NoSuchElementException(); }
+            // Stops at batchSize, so no more than the current server batch is fetched
+            List<Object> batch = new ArrayList<>(batchSize);
+            while (batch.size() < batchSize && cursor.hasNext()) {
+                batch.add(cursor.next());
+            }
+            buffer = batchDecoder.apply(batch).iterator();
+        }
+        return buffer.next();
+    }
+
+    /**
+     * @return a sequential stream over the remaining entities, which closes the cursor when it's closed
+     */
+    public Stream<T> stream() {
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(this, Spliterator.ORDERED | Spliterator.NONNULL), false)
+                .onClose(this::close);
+    }
+
+    @Override
+    public void close() {
+        cursor.close();
+    }
+
+}
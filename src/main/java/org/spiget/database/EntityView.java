@@ -0,0 +1,90 @@
+package org.spiget.database;
+
+import com.mongodb.client.model.Projections;
+import org.bson.conversions.Bson;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The set of fields a read loads, pushed down to MongoDB as projection. Fields outside the view are left at their defaults in the decoded objects.
+ */
+public class EntityView {
+
+    /**
+     * The complete documents
+     */
+    public static final EntityView FULL = new EntityView(null);
+
+    /**
+     * Resource fields for listings, without the description, the icon data and the file info
+     */
+    public static final EntityView RESOURCE_SUMMARY = fields("name", "tag", "contributors", "likes", "rating", "downloads", "releaseDate", "updateDate", "premium", "price", "currency", "external", "author", "category", "version", "icon.url", "testedVersions");
+
+    /**
+     * Author fields for listings, without the icon data
+     */
+    public static final EntityView AUTHOR_SUMMARY = fields("name", "icon.url");
+
+    private final Set<String> fields;
+    private final Bson        projection;
+
+    private EntityView(Set<String> fields) {
+        this.fields = fields == null ? null : Collections.unmodifiableSet(fields);
+        if (fields == null) {
+            this.projection = null;
+        } else {
+            List<String> included = new ArrayList<>(fields);
+            // The id is always loaded, whichever name the model maps it to
+            included.add("_id");
+            included.add("id");
+            this.projection = Projections.include(included);
+        }
+    }
+
+    /**
+     * View of only the given top-level fields or dotted paths (plus the id)
+     */
+    public static EntityView fields(String... fields) {
+        return new EntityView(new LinkedHashSet<>(Arrays.asList(fields)));
+    }
+
+    public boolean isFull() {
+        return fields == null;
+    }
+
+    /**
+     * @return whether the view loads the field or dotted path, i.e. it is full or includes the path itself or one of its parents
+     */
+    public boolean includes(String path) {
+        if (fields == null) { return true; }
+        for (String field : fields) {
+            if (path.equals(field) || path.startsWith(field + ".")) { return true; }
+        }
+        return false;
+    }
+
+    /**
+     * @return the included fields, or <code>null</code> for {@link #FULL}
+     */
+    public Set<String> getFields() {
+        return fields;
+    }
+
+    /**
+     * @return the projection document, or <code>null</code> for {@link #FULL}
+     */
+    Bson projection() {
+        return projection;
+    }
+
+    @Override
+    public String toString() {
+        return isFull() ? "EntityView{full}" : "EntityView{" + fields + "}";
+    }
+
+}
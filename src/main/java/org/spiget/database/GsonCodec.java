@@ -0,0 +1,50 @@
+package org.spiget.database;
+
+import com.google.gson.Gson;
+import org.bson.BsonReader;
+import org.bson.BsonWriter;
+import org.bson.codecs.Codec;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
+
+/**
+ * {@link Codec} backed by one of the {@link SpigetGson} instances, so the stored shape (including the id-only references) stays exactly the same as with the JSON round trip
+ */
+class GsonCodec<T> implements Codec<T> {
+
+    private final Class<T> clazz;
+    private final Gson     gson;
+
+    GsonCodec(Class<T> clazz, Gson gson) {
+        this.clazz = clazz;
+        this.gson = gson;
+    }
+
+    @Override
+    public void encode(BsonWriter writer, T value, EncoderContext encoderContext) {
+        long start = ClientInstrumentation.serializationStart();
+        try {
+            gson.toJson(value, value.getClass(), new BsonJsonWriter(writer));
+        } finally {
+            ClientInstrumentation.serializationEnd(start);
+        }
+    }
+
+    @Override
+    public T decode(BsonReader reader, DecoderContext decoderContext) {
+        long start = ClientInstrumentation.serializationStart();
+        try {
+            // Read through a JsonElement tree on purpose: Gson's map adapter only accepts its own JsonReader implementations for object keys (JsonReaderInternalAccess),
+            // so a streaming reader over the BsonReader (the counterpart of BsonJsonWriter) can't decode Map fields. The tree still skips the JSON string.
+            return gson.fromJson(DatabaseParser.toJson(reader), clazz);
+        } finally {
+            ClientInstrumentation.serializationEnd(start);
+        }
+    }
+
+    @Override
+    public Class<T> getEncoderClass() {
+        return clazz;
+    }
+
+}
@@ -0,0 +1,474 @@
+package org.spiget.database;
+
+import com.mongodb.MongoWriteException;
+import com.mongodb.ServerAddress;
+import com.mongodb.WriteError;
+import com.mongodb.client.model.DeleteManyModel;
+import com.mongodb.client.model.DeleteOneModel;
+import com.mongodb.client.model.InsertOneModel;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.WriteModel;
+import com.mongodb.client.result.DeleteResult;
+import com.mongodb.client.result.UpdateResult;
+import org.bson.BSONException;
+import org.bson.BsonDocument;
+import org.bson.BsonDocumentReader;
+import org.bson.BsonNull;
+import org.bson.BsonObjectId;
+import org.bson.BsonValue;
+import org.bson.Document;
+import org.bson.codecs.DecoderContext;
+import org.bson.conversions.Bson;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * One collection of the {@link InMemoryStorageBackend}. Reads share a read lock, writes are serialized; stored documents are never handed out, only copies.
+ */
+class InMemoryDocumentStore implements DocumentStore {
+
+    private static final int DUPLICATE_KEY = 11000;
+    private static final int BAD_VALUE     = 2;
+
+    private final String name;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    // Keyed by BsonDocuments#indexKey of the _id
+    private final Map<Object, BsonDocument>                      documents      = new LinkedHashMap<>();
+    private final Map<String, HashIndex>                         hashIndexes    = new HashMap<>();
+    private final Map<String, TreeMap<BsonValue, Set<Object>>>   orderedIndexes = new HashMap<>();
+
+    InMemoryDocumentStore(String name) {
+        this.name = name;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @param uniqueFilter if not <code>null</code>, uniqueness only applies among the documents matching it (like a partial unique index)
+     */
+    void createIndex(String field, boolean unique, BsonDocument uniqueFilter) {
+        lock.writeLock().lock();
+        try {
+            HashIndex index = new HashIndex(unique, uniqueFilter);
+            for (Map.Entry<Object, BsonDocument> entry : documents.entrySet()) {
+                index.add(BsonDocuments.get(entry.getValue(), field), entry.getKey());
+            }
+            hashIndexes.put(field, index);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    void createOrderedIndex(String field) {
+        lock.writeLock().lock();
+        try {
+            TreeMap<BsonValue, Set<Object>> index = new TreeMap<>(BsonDocuments.VALUE_ORDER);
+            for (Map.Entry<Object, BsonDocument> entry : documents.entrySet()) {
+                index.computeIfAbsent(orderedKey(entry.getValue(), field), k -> new LinkedHashSet<>()).add(entry.getKey());
+            }
+            orderedIndexes.put(field, index);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    void clear() {
+        lock.writeLock().lock();
+        try {
+            documents.clear();
+            for (HashIndex index : hashIndexes.values()) {
+                index.entries.clear();
+            }
+            for (TreeMap<BsonValue, Set<Object>> index : orderedIndexes.values()) {
+                index.clear();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Reads
+
+    @Override
+    public <T> List<T> find(Bson filter, Bson projection, Bson sort, int limit, Class<T> clazz) {
+        BsonDocument filterDocument = BsonDocuments.toDocument(filter);
+        BsonDocument projectionDocument = BsonDocuments.toDocument(projection);
+        BsonDocument sortDocument = BsonDocuments.toDocument(sort);
+
+        List<BsonDocument> found = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            List<BsonDocument> matches = findMatches(filterDocument, sortDocument, limit);
+            for (BsonDocument document : matches) {
+                found.add(BsonDocuments.project(document, projectionDocument));
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        List<T> list = new ArrayList<>(found.size());
+        for (BsonDocument document : found) {
+            list.add(decode(document, clazz));
+        }
+        return list;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T decode(BsonDocument document, Class<T> clazz) {
+        if (clazz == BsonDocument.class) { return (T) document; }
+        return DatabaseParser.SPIGET_CODEC_REGISTRY.get(clazz).decode(new BsonDocumentReader(document), DecoderContext.builder().build());
+    }
+
+    /**
+     * @return the stored (not copied) documents matching the filter, in sort order and limited
+     */
+    private List<BsonDocument> findMatches(BsonDocument filter, BsonDocument sort, int limit) {
+        if (sort != null && !sort.isEmpty()) {
+            String first = sort.getFirstKey();
+            TreeMap<BsonValue, Set<Object>> ordered = orderedIndexes.get(first);
+            if (ordered != null) {
+                return findOrdered(ordered, filter, sort, limit);
+            }
+        }
+
+        List<BsonDocument> matches = new ArrayList<>();
+        for (BsonDocument document : candidates(filter)) {
+            if (BsonDocuments.matches(document, filter)) {
+                matches.add(document);
+                if (limit > 0 && matches.size() >= limit && (sort == null || sort.isEmpty())) { break; }
+            }
+        }
+        if (sort != null && !sort.isEmpty()) {
+            matches.sort(BsonDocuments.sortOrder(sort));
+            if (limit > 0 && matches.size() > limit) {
+                matches = new ArrayList<>(matches.subList(0, limit));
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * Walks the ordered index of the first sort field, sorting only the documents with equal keys by the remaining fields
+     */
+    private List<BsonDocument> findOrdered(TreeMap<BsonValue, Set<Object>> index, BsonDocument filter, BsonDocument sort, int limit) {
+        boolean descending = sort.get(sort.getFirstKey()).asNumber().intValue() < 0;
+        NavigableMap<BsonValue, Set<Object>> map = descending ? index.descendingMap() : index;
+        Comparator<BsonDocument> order = BsonDocuments.sortOrder(sort);
+
+        List<BsonDocument> matches = new ArrayList<>();
+        for (Set<Object> ids : map.values()) {
+            List<BsonDocument> group = new ArrayList<>();
+            for (Object id : ids) {
+                BsonDocument document = documents.get(id);
+                if (document != null && BsonDocuments.matches(document, filter)) {
+                    group.add(document);
+                }
+            }
+            group.sort(order);
+            for (BsonDocument document : group) {
+                matches.add(document);
+                if (limit > 0 && matches.size() >= limit) { return matches; }
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * Narrows the documents to check with the _id or a hash index, if the filter allows it
+     */
+    private Collection<BsonDocument> candidates(BsonDocument filter) {
+        List<BsonValue> ids = BsonDocuments.idCandidates(filter);
+        if (ids != null) {
+            List<BsonDocument> list = new ArrayList<>();
+            for (BsonValue id : ids) {
+                BsonDocument document = documents.get(BsonDocuments.indexKey(id));
+                if (document != null) { list.add(document); }
+            }
+            return list;
+        }
+        for (Map.Entry<String, HashIndex> entry : hashIndexes.entrySet()) {
+            List<BsonValue> values = BsonDocuments.candidates(filter, entry.getKey());
+            if (values == null) { continue; }
+            Set<Object> keys = new LinkedHashSet<>();
+            for (BsonValue value : values) {
+                keys.addAll(entry.getValue().get(value));
+            }
+            List<BsonDocument> list = new ArrayList<>();
+            for (Object key : keys) {
+                list.add(documents.get(key));
+            }
+            return list;
+        }
+        return documents.values();
+    }
+
+    // Writes
+
+    @Override
+    public void insertOne(BsonDocument document) {
+        lock.writeLock().lock();
+        try {
+            insert(document);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void insert(BsonDocument document) {
+        if (!document.containsKey("_id")) {
+            document.put("_id", new BsonObjectId());
+        }
+        BsonDocument copy = document.clone();
+        Object key = BsonDocuments.indexKey(copy.get("_id"));
+        if (documents.containsKey(key)) {
+            throw duplicateKey("_id", copy.get("_id"));
+        }
+        checkUnique(copy, null);
+        documents.put(key, copy);
+        index(copy, key);
+    }
+
+    @Override
+    public UpdateResult updateOne(Bson filter, Bson update, boolean upsert) {
+        lock.writeLock().lock();
+        try {
+            return update(BsonDocuments.toDocument(filter), BsonDocuments.toDocument(update), upsert);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private UpdateResult update(BsonDocument filter, BsonDocument update, boolean upsert) {
+        BsonDocument existing = null;
+        for (BsonDocument document : candidates(filter)) {
+            if (BsonDocuments.matches(document, filter)) {
+                existing = document;
+                break;
+            }
+        }
+        if (existing == null) {
+            if (!upsert) { return UpdateResult.acknowledged(0, 0L, null); }
+            BsonDocument document = BsonDocuments.upsertBase(filter);
+            BsonDocuments.applyUpdate(document, update, true);
+            insert(document);
+            return UpdateResult.acknowledged(0, 0L, document.get("_id"));
+        }
+
+        return UpdateResult.acknowledged(1, apply(existing, update) != existing ? 1L : 0L, null);
+    }
+
+    @Override
+    public <T> T findOneAndUpdate(Bson filter, Bson update, Bson sort, Class<T> clazz) {
+        BsonDocument updated;
+        lock.writeLock().lock();
+        try {
+            List<BsonDocument> matches = findMatches(BsonDocuments.toDocument(filter), BsonDocuments.toDocument(sort), 1);
+            if (matches.isEmpty()) { return null; }
+            updated = apply(matches.get(0), BsonDocuments.toDocument(update)).clone();
+        } finally {
+            lock.writeLock().unlock();
+        }
+        return decode(updated, clazz);
+    }
+
+    /**
+     * Applies the update to a stored document
+     *
+     * @return the new stored document, or the existing one if nothing changed
+     */
+    private BsonDocument apply(BsonDocument existing, BsonDocument update) {
+        BsonDocument updated = existing.clone();
+        BsonDocuments.applyUpdate(updated, update, false);
+        if (updated.equals(existing)) {
+            return existing;
+        }
+        BsonValue id = existing.get("_id");
+        if (!id.equals(updated.get("_id"))) {
+            throw new MongoWriteException(new WriteError(66, "Performing an update on the path '_id' would modify the immutable field '_id'", new BsonDocument()), new ServerAddress());
+        }
+        Object key = BsonDocuments.indexKey(id);
+        checkUnique(updated, key);
+        unindex(existing, key);
+        documents.put(key, updated);
+        index(updated, key);
+        return updated;
+    }
+
+    @Override
+    public DeleteResult deleteOne(Bson filter) {
+        lock.writeLock().lock();
+        try {
+            return DeleteResult.acknowledged(delete(BsonDocuments.toDocument(filter), 1));
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public DeleteResult deleteMany(Bson filter) {
+        lock.writeLock().lock();
+        try {
+            return DeleteResult.acknowledged(delete(BsonDocuments.toDocument(filter), 0));
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private int delete(BsonDocument filter, int limit) {
+        List<BsonDocument> matches = new ArrayList<>();
+        for (BsonDocument document : candidates(filter)) {
+            if (BsonDocuments.matches(document, filter)) {
+                matches.add(document);
+                if (limit > 0 && matches.size() >= limit) { break; }
+            }
+        }
+        for (BsonDocument document : matches) {
+            Object key = BsonDocuments.indexKey(document.get("_id"));
+            documents.remove(key);
+            unindex(document, key);
+        }
+        return matches.size();
+    }
+
+    @Override
+    public void bulkWrite(List<? extends WriteModel<Document>> models, List<?> ids, BulkWriteSummary summary) {
+        int matched = 0, modified = 0, upserted = 0, inserted = 0, deleted = 0;
+        lock.writeLock().lock();
+        try {
+            for (int i = 0; i < models.size(); i++) {
+                WriteModel<Document> model = models.get(i);
+                try {
+                    if (model instanceof UpdateOneModel) {
+                        UpdateOneModel<Document> update = (UpdateOneModel<Document>) model;
+                        UpdateResult result = update(BsonDocuments.toDocument(update.getFilter()), BsonDocuments.toDocument(update.getUpdate()), update.getOptions().isUpsert());
+                        matched += result.getMatchedCount();
+                        modified += result.getModifiedCount();
+                        if (result.getUpsertedId() != null) { upserted++; }
+                    } else if (model instanceof InsertOneModel) {
+                        insert(BsonDocuments.toDocument(((InsertOneModel<Document>) model).getDocument()));
+                        inserted++;
+                    } else if (model instanceof DeleteOneModel) {
+                        deleted += delete(BsonDocuments.toDocument(((DeleteOneModel<Document>) model).getFilter()), 1);
+                    } else if (model instanceof DeleteManyModel) {
+                        deleted += delete(BsonDocuments.toDocument(((DeleteManyModel<Document>) model).getFilter()), 0);
+                    } else {
+                        throw new UnsupportedOperationException(model.getClass().getSimpleName() + " is not supported by the in-memory storage");
+                    }
+                } catch (MongoWriteException e) {
+                    summary.addError(ids.get(i), e.getCode(), e.getMessage());
+                } catch (UnsupportedOperationException | IllegalArgumentException | BSONException e) {
+                    // Operators or models the engine doesn't understand fail only their own item, like rejected operations in a MongoDB bulk write
+                    summary.addError(ids.get(i), BAD_VALUE, e.getMessage());
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        summary.add(matched, modified, upserted, inserted, deleted);
+    }
+
+    // Indexes
+
+    private void checkUnique(BsonDocument document, Object ownKey) {
+        for (Map.Entry<String, HashIndex> entry : hashIndexes.entrySet()) {
+            HashIndex index = entry.getValue();
+            if (!index.unique || !index.appliesTo(document)) { continue; }
+            BsonValue value = BsonDocuments.get(document, entry.getKey());
+            for (Object existing : index.get(value)) {
+                if (!existing.equals(ownKey) && index.appliesTo(documents.get(existing))) {
+                    throw duplicateKey(entry.getKey(), value);
+                }
+            }
+        }
+    }
+
+    private void index(BsonDocument document, Object key) {
+        for (Map.Entry<String, HashIndex> entry : hashIndexes.entrySet()) {
+            entry.getValue().add(BsonDocuments.get(document, entry.getKey()), key);
+        }
+        for (Map.Entry<String, TreeMap<BsonValue, Set<Object>>> entry : orderedIndexes.entrySet()) {
+            entry.getValue().computeIfAbsent(orderedKey(document, entry.getKey()), k -> new LinkedHashSet<>()).add(key);
+        }
+    }
+
+    private void unindex(BsonDocument document, Object key) {
+        for (Map.Entry<String, HashIndex> entry : hashIndexes.entrySet()) {
+            entry.getValue().remove(BsonDocuments.get(document, entry.getKey()), key);
+        }
+        for (Map.Entry<String, TreeMap<BsonValue, Set<Object>>> entry : orderedIndexes.entrySet()) {
+            BsonValue value = orderedKey(document, entry.getKey());
+            Set<Object> keys = entry.getValue().get(value);
+            if (keys != null) {
+                keys.remove(key);
+                if (keys.isEmpty()) { entry.getValue().remove(value); }
+            }
+        }
+    }
+
+    private static BsonValue orderedKey(BsonDocument document, String field) {
+        BsonValue value = BsonDocuments.get(document, field);
+        return value == null ? BsonNull.VALUE : value;
+    }
+
+    private MongoWriteException duplicateKey(String field, BsonValue value) {
+        return new MongoWriteException(new WriteError(DUPLICATE_KEY, "E11000 duplicate key error collection: " + name + " index: " + field + " dup key: " + value, new BsonDocument()), new ServerAddress());
+    }
+
+    private static class HashIndex {
+
+        private final boolean                  unique;
+        private final BsonDocument             uniqueFilter;
+        private final Map<Object, Set<Object>> entries = new HashMap<>();
+
+        HashIndex(boolean unique, BsonDocument uniqueFilter) {
+            this.unique = unique;
+            this.uniqueFilter = uniqueFilter;
+        }
+
+        boolean appliesTo(BsonDocument document) {
+            return uniqueFilter == null || BsonDocuments.matches(document, uniqueFilter);
+        }
+
+        Set<Object> get(BsonValue value) {
+            Set<Object> keys = new LinkedHashSet<>();
+            for (Object indexKey : BsonDocuments.indexKeys(value)) {
+                keys.addAll(entries.getOrDefault(indexKey, Collections.emptySet()));
+            }
+            return keys;
+        }
+
+        void add(BsonValue value, Object key) {
+            for (Object indexKey : BsonDocuments.indexKeys(value)) {
+                entries.computeIfAbsent(indexKey, k -> new LinkedHashSet<>()).add(key);
+            }
+        }
+
+        void remove(BsonValue value, Object key) {
+            for (Object indexKey : BsonDocuments.indexKeys(value)) {
+                Set<Object> keys = entries.get(indexKey);
+                if (keys != null) {
+                    keys.remove(key);
+                    if (keys.isEmpty()) { entries.remove(indexKey); }
+                }
+            }
+        }
+    }
+
+}
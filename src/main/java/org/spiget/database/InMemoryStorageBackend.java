@@ -0,0 +1,74 @@
+package org.spiget.database;
+
+import org.bson.BsonBoolean;
+import org.bson.BsonDocument;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * {@link StorageBackend} which keeps all collections in memory, for tests, benchmarks and single-node setups without a MongoDB server.
+ * <p>
+ * Every collection is a concurrent id-keyed map with optional hash indexes (used for equality and <code>$in</code> lookups) and ordered indexes (used for sorted reads).
+ * The indexes for status keys, webhook events and the update request queue are created by default.
+ * Nothing is persisted; features built on MongoDB itself (change streams, time-series collections, the metrics sink) still require {@link MongoStorageBackend}.
+ */
+public class InMemoryStorageBackend implements StorageBackend {
+
+    private final Map<String, InMemoryDocumentStore> stores = new ConcurrentHashMap<>();
+
+    public InMemoryStorageBackend() {
+        createIndex("status", "key", true);
+        createIndex("webhooks", "events", false);
+        // Like the partial unique index DatabaseIndexes declares: one waiting request per requestedId
+        createIndex("update_requests", "requestedId", true, new BsonDocument(UpdateRequestQueue.PENDING_FIELD, BsonBoolean.TRUE));
+        createOrderedIndex("update_requests", "requested");
+        createOrderedIndex("resources", "fetch.latest");
+        createOrderedIndex("authors", "fetch.latest");
+    }
+
+    /**
+     * Adds a hash index on the field, which answers equality and <code>$in</code> conditions. Array fields are indexed by element.
+     */
+    public void createIndex(String collection, String field, boolean unique) {
+        createIndex(collection, field, unique, null);
+    }
+
+    /**
+     * @param uniqueFilter if not <code>null</code>, uniqueness only applies among the documents matching it (like a partial unique index)
+     */
+    public void createIndex(String collection, String field, boolean unique, BsonDocument uniqueFilter) {
+        store(collection).createIndex(field, unique, uniqueFilter);
+    }
+
+    /**
+     * Adds an ordered index on the field, which answers reads sorted by only that field without sorting the whole collection
+     */
+    public void createOrderedIndex(String collection, String field) {
+        store(collection).createOrderedIndex(field);
+    }
+
+    @Override
+    public DocumentStore getStore(String collection) {
+        return store(collection);
+    }
+
+    private InMemoryDocumentStore store(String collection) {
+        return stores.computeIfAbsent(collection, InMemoryDocumentStore::new);
+    }
+
+    /**
+     * Removes all documents, keeping the indexes
+     */
+    public void clear() {
+        for (InMemoryDocumentStore store : stores.values()) {
+            store.clear();
+        }
+    }
+
+    @Override
+    public void close() {
+        clear();
+    }
+
+}
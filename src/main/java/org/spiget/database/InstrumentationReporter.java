@@ -0,0 +1,10 @@
+package org.spiget.database;
+
+/**
+ * Receives periodic snapshots of a client's {@link ClientInstrumentation}
+ */
+public interface InstrumentationReporter {
+
+    void report(ClientInstrumentation instrumentation);
+
+}
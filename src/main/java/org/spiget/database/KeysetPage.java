@@ -0,0 +1,85 @@
+package org.spiget.database;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * One page of a keyset-paginated listing. The next page continues after {@link #getNext()}, which stays stable no matter how many documents precede it.
+ */
+public class KeysetPage<T> {
+
+    private final List<T>  items;
+    private final Position next;
+    private final boolean  hasMore;
+
+    KeysetPage(List<T> items, Position next, boolean hasMore) {
+        this.items = Collections.unmodifiableList(items);
+        this.next = next;
+        this.hasMore = hasMore;
+    }
+
+    public List<T> getItems() {
+        return items;
+    }
+
+    /**
+     * @return the position of the last item, to pass to the next call; the given position again if the page is empty
+     */
+    public Position getNext() {
+        return next;
+    }
+
+    /**
+     * @return <code>true</code> if there were more documents after this page when it was loaded
+     */
+    public boolean hasMore() {
+        return hasMore;
+    }
+
+    /**
+     * Sort key of a document in a listing: its <code>_id</code>, and its <code>fetch.latest</code> for the change feeds
+     */
+    public static class Position {
+
+        /**
+         * Position before the first document
+         */
+        public static final Position START = new Position(Long.MIN_VALUE, Integer.MIN_VALUE);
+
+        private final long fetchLatest;
+        private final int  id;
+
+        public Position(long fetchLatest, int id) {
+            this.fetchLatest = fetchLatest;
+            this.id = id;
+        }
+
+        /**
+         * Position right before the documents fetched at or after the unix timestamp
+         */
+        public static Position since(long fetchLatest) {
+            return new Position(fetchLatest, Integer.MIN_VALUE);
+        }
+
+        /**
+         * Position after the document with the id, for listings in _id order
+         */
+        public static Position afterId(int id) {
+            return new Position(Long.MIN_VALUE, id);
+        }
+
+        public long getFetchLatest() {
+            return fetchLatest;
+        }
+
+        public int getId() {
+            return id;
+        }
+
+        @Override
+        public String toString() {
+            return "Position{fetchLatest=" + fetchLatest + ", id=" + id + "}";
+        }
+    }
+
+}
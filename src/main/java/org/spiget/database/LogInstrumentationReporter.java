@@ -0,0 +1,27 @@
+package org.spiget.database;
+
+import lombok.extern.log4j.Log4j2;
+
+import java.util.Map;
+
+/**
+ * Logs every operation which has been called at least once
+ */
+@Log4j2
+public class LogInstrumentationReporter implements InstrumentationReporter {
+
+    @Override
+    public void report(ClientInstrumentation instrumentation) {
+        for (OperationStats stats : instrumentation.getOperations().values()) {
+            if (stats.getCount() > 0) {
+                log.info(stats.toString());
+            }
+        }
+        for (Map.Entry<String, LatencyHistogram> command : instrumentation.getCommands().entrySet()) {
+            LatencyHistogram histogram = command.getValue();
+            log.info("command " + command.getKey() + "{count=" + histogram.getCount() + ", p99=" + histogram.getPercentile(99) / 1000 + "µs}");
+        }
+        log.info(instrumentation.getConnectionPool().toString());
+    }
+
+}
@@ -0,0 +1,47 @@
+package org.spiget.database;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Result of a multi-id lookup: entities keyed by id in the order they were requested, plus the ids which weren't found
+ */
+public class LookupResult<T> {
+
+    private final Map<Integer, T> entities;
+    private final List<Integer>   missingIds;
+
+    LookupResult(LinkedHashMap<Integer, T> entities) {
+        List<Integer> missing = new ArrayList<>();
+        for (Map.Entry<Integer, T> entry : entities.entrySet()) {
+            if (entry.getValue() == null) {
+                missing.add(entry.getKey());
+            }
+        }
+        this.entities = Collections.unmodifiableMap(entities);
+        this.missingIds = Collections.unmodifiableList(missing);
+    }
+
+    /**
+     * @return all requested ids in request order (duplicates removed), mapped to <code>null</code> if they weren't found
+     */
+    public Map<Integer, T> getEntities() {
+        return entities;
+    }
+
+    public T get(int id) {
+        return entities.get(id);
+    }
+
+    public List<Integer> getMissingIds() {
+        return missingIds;
+    }
+
+    public boolean hasMissing() {
+        return !missingIds.isEmpty();
+    }
+
+}
@@ -0,0 +1,217 @@
+package org.spiget.database;
+
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.MongoException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.InsertManyOptions;
+import io.sentry.Sentry;
+import lombok.extern.log4j.Log4j2;
+import org.apache.logging.log4j.Level;
+import org.bson.BsonDateTime;
+import org.bson.BsonDocument;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Buffers metrics samples in a bounded queue and writes them in the background with unordered insertMany batches.
+ * A batch is written once it has <code>batchSize</code> samples, or once its first sample has waited for the flush interval.
+ */
+@Log4j2
+public class MetricsSink implements Closeable {
+
+    public enum OverflowPolicy {
+        /**
+         * Block the caller until there is room in the queue
+         */
+        BLOCK,
+        /**
+         * Discard the sample that didn't fit
+         */
+        DROP_NEWEST,
+        /**
+         * Discard the oldest queued sample to make room
+         */
+        DROP_OLDEST
+    }
+
+    private final MongoCollection<BsonDocument> collection;
+    private final BlockingQueue<BsonDocument>   queue;
+    private final int                           batchSize;
+    private final long                          flushIntervalMillis;
+    private final OverflowPolicy                policy;
+    private final String                        timeField;
+
+    // Blocked producers re-check whether the sink was closed this often
+    private static final long BLOCK_POLL_MILLIS = 100;
+
+    private final    Thread  thread;
+    // Held by the writer thread while writing, so close() only interrupts it while it waits for samples
+    private final    Object  writeLock = new Object();
+    private volatile boolean closed;
+
+    private final AtomicLong acceptedCount = new AtomicLong();
+    private final AtomicLong droppedCount  = new AtomicLong();
+    private final AtomicLong writtenCount  = new AtomicLong();
+    private final AtomicLong failedCount   = new AtomicLong();
+
+    /**
+     * @param flushInterval maximum time a sample waits for its batch to fill up
+     * @param timeField     if not <code>null</code>, samples without this field get the time they were queued at as a BSON date (required for time-series collections)
+     */
+    MetricsSink(MongoCollection<BsonDocument> collection, int capacity, int batchSize, long flushInterval, TimeUnit unit, OverflowPolicy policy, String timeField) {
+        this.collection = collection;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.batchSize = batchSize;
+        this.flushIntervalMillis = unit.toMillis(flushInterval);
+        this.policy = policy;
+        this.timeField = timeField;
+        this.thread = new DaemonThreadFactory("spiget-metrics").newThread(this::run);
+        this.thread.start();
+    }
+
+    /**
+     * Queues a sample for writing
+     *
+     * @return <code>false</code> if the sample was dropped
+     */
+    public boolean offer(BsonDocument document) {
+        if (closed) { throw new IllegalStateException("MetricsSink is closed"); }
+        if (timeField != null && !document.containsKey(timeField)) {
+            document.append(timeField, new BsonDateTime(System.currentTimeMillis()));
+        }
+        switch (policy) {
+            case BLOCK:
+                try {
+                    while (!queue.offer(document, BLOCK_POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                        if (closed) {
+                            // Nothing drains the queue anymore
+                            droppedCount.incrementAndGet();
+                            return false;
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    droppedCount.incrementAndGet();
+                    return false;
+                }
+                break;
+            case DROP_NEWEST:
+                if (!queue.offer(document)) {
+                    droppedCount.incrementAndGet();
+                    return false;
+                }
+                break;
+            case DROP_OLDEST:
+                while (!queue.offer(document)) {
+                    if (queue.poll() != null) {
+                        droppedCount.incrementAndGet();
+                    }
+                }
+                break;
+        }
+        acceptedCount.incrementAndGet();
+        return true;
+    }
+
+    public int getQueueSize() {
+        return queue.size();
+    }
+
+    public long getAcceptedCount() {
+        return acceptedCount.get();
+    }
+
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    public long getWrittenCount() {
+        return writtenCount.get();
+    }
+
+    public long getFailedCount() {
+        return failedCount.get();
+    }
+
+    private void run() {
+        List<BsonDocument> batch = new ArrayList<>(batchSize);
+        while (!closed) {
+            try {
+                fill(batch);
+            } catch (InterruptedException e) {
+                // Closed while waiting; the samples collected so far are still written below
+            }
+            if (batch.isEmpty()) { continue; }
+            synchronized (writeLock) {
+                // An interrupt which arrived while filling would abort the insert
+                Thread.interrupted();
+                write(batch);
+            }
+            batch.clear();
+        }
+    }
+
+    /**
+     * Waits for a first sample, then until the batch is full or the first sample waited for the flush interval
+     */
+    private void fill(List<BsonDocument> batch) throws InterruptedException {
+        BsonDocument first = queue.poll(flushIntervalMillis, TimeUnit.MILLISECONDS);
+        if (first == null) { return; }
+        batch.add(first);
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(flushIntervalMillis);
+        while (batch.size() < batchSize && !closed) {
+            queue.drainTo(batch, batchSize - batch.size());
+            if (batch.size() >= batchSize) { return; }
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) { return; }
+            BsonDocument next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+            if (next == null) { return; }
+            batch.add(next);
+        }
+    }
+
+    private void write(List<BsonDocument> batch) {
+        try {
+            collection.insertMany(batch, new InsertManyOptions().ordered(false));
+            writtenCount.addAndGet(batch.size());
+        } catch (MongoBulkWriteException e) {
+            writtenCount.addAndGet(e.getWriteResult().getInsertedCount());
+            failedCount.addAndGet(e.getWriteErrors().size());
+            log.warn("Failed to write " + e.getWriteErrors().size() + " of " + batch.size() + " metrics samples");
+        } catch (MongoException e) {
+            failedCount.addAndGet(batch.size());
+            Sentry.captureException(e);
+            log.log(Level.WARN, "Failed to write " + batch.size() + " metrics samples", e);
+        }
+    }
+
+    /**
+     * Stops the background writer and writes whatever is still queued
+     */
+    @Override
+    public void close() {
+        if (closed) { return; }
+        closed = true;
+        synchronized (writeLock) {
+            // Never while the writer is inside insertMany, which would fail the batch it holds
+            thread.interrupt();
+        }
+        try {
+            thread.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        List<BsonDocument> batch = new ArrayList<>(batchSize);
+        while (queue.drainTo(batch, batchSize) > 0) {
+            write(batch);
+            batch.clear();
+        }
+    }
+
+}
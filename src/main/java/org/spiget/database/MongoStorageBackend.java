@@ -0,0 +1,140 @@
+package org.spiget.database;
+
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.MongoException;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.ReturnDocument;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.WriteModel;
+import com.mongodb.client.result.DeleteResult;
+import com.mongodb.client.result.UpdateResult;
+import io.sentry.Sentry;
+import lombok.extern.log4j.Log4j2;
+import org.apache.logging.log4j.Level;
+import org.bson.BsonDocument;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * {@link StorageBackend} on the collections of a MongoDB database
+ */
+@Log4j2
+public class MongoStorageBackend implements StorageBackend {
+
+    private final Function<String, MongoCollection<Document>> collections;
+    private final Map<String, DocumentStore>                   stores = new ConcurrentHashMap<>();
+
+    /**
+     * @param collections provides the (configured) collection of a name
+     */
+    public MongoStorageBackend(Function<String, MongoCollection<Document>> collections) {
+        this.collections = collections;
+    }
+
+    @Override
+    public DocumentStore getStore(String collection) {
+        return stores.computeIfAbsent(collection, MongoDocumentStore::new);
+    }
+
+    public MongoCollection<Document> getCollection(String collection) {
+        return collections.apply(collection);
+    }
+
+    @Override
+    public void close() {
+        // The MongoClient is owned by the DatabaseClient
+    }
+
+    private class MongoDocumentStore implements DocumentStore {
+
+        private final String name;
+
+        MongoDocumentStore(String name) {
+            this.name = name;
+        }
+
+        private MongoCollection<Document> collection() {
+            // Looked up every time, so collections replaced on the client are picked up
+            return collections.apply(name);
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public <T> List<T> find(Bson filter, Bson projection, Bson sort, int limit, Class<T> clazz) {
+            return collection().withDocumentClass(clazz).find(filter == null ? new BsonDocument() : filter).projection(projection).sort(sort).limit(limit).into(new ArrayList<>());
+        }
+
+        @Override
+        public <T> T findFirst(Bson filter, Bson projection, Class<T> clazz) {
+            return collection().withDocumentClass(clazz).find(filter == null ? new BsonDocument() : filter).projection(projection).limit(1).first();
+        }
+
+        @Override
+        public void insertOne(BsonDocument document) {
+            collection().withDocumentClass(BsonDocument.class).insertOne(document);
+        }
+
+        @Override
+        public UpdateResult updateOne(Bson filter, Bson update, boolean upsert) {
+            return collection().updateOne(filter, update, new UpdateOptions().upsert(upsert));
+        }
+
+        @Override
+        public <T> T findOneAndUpdate(Bson filter, Bson update, Bson sort, Class<T> clazz) {
+            return collection().withDocumentClass(clazz).findOneAndUpdate(filter, update, new FindOneAndUpdateOptions().sort(sort).returnDocument(ReturnDocument.AFTER));
+        }
+
+        @Override
+        public long count(Bson filter) {
+            return collection().countDocuments(filter == null ? new BsonDocument() : filter);
+        }
+
+        @Override
+        public DeleteResult deleteOne(Bson filter) {
+            return collection().deleteOne(filter);
+        }
+
+        @Override
+        public DeleteResult deleteMany(Bson filter) {
+            return collection().deleteMany(filter);
+        }
+
+        @Override
+        public void bulkWrite(List<? extends WriteModel<Document>> models, List<?> ids, BulkWriteSummary summary) {
+            MongoCollection<Document> collection = collection();
+            try {
+                summary.add(collection.bulkWrite(models, new BulkWriteOptions().ordered(false)));
+            } catch (MongoBulkWriteException e) {
+                summary.add(e.getWriteResult());
+                for (BulkWriteError error : e.getWriteErrors()) {
+                    summary.addError(ids.get(error.getIndex()), error.getCode(), error.getMessage());
+                }
+                if (e.getWriteConcernError() != null) {
+                    log.warn("Write concern error in bulk write to " + collection.getNamespace() + ": " + e.getWriteConcernError().getMessage());
+                    summary.addWriteConcernError(e.getWriteConcernError());
+                }
+            } catch (MongoException e) {
+                Sentry.captureException(e);
+                log.log(Level.WARN, "Bulk write of " + models.size() + " operations to " + collection.getNamespace() + " failed", e);
+                summary.add(null);
+                for (Object id : ids) {
+                    summary.addError(id, e.getCode(), e.getMessage());
+                }
+            }
+        }
+    }
+
+}
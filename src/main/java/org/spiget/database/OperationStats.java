@@ -0,0 +1,109 @@
+package org.spiget.database;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latencies of one public {@link DatabaseClient} operation, split into the time spent serializing and the time spent in the driver (including the round trip)
+ */
+public class OperationStats implements OperationStatsMBean {
+
+    private final String name;
+
+    private final LatencyHistogram total         = new LatencyHistogram();
+    private final LatencyHistogram serialization = new LatencyHistogram();
+    private final LatencyHistogram driver        = new LatencyHistogram();
+    private final LongAdder        errors        = new LongAdder();
+
+    OperationStats(String name) {
+        this.name = name;
+    }
+
+    void record(long totalNanos, long serializationNanos, boolean failed) {
+        total.record(totalNanos);
+        serialization.record(serializationNanos);
+        driver.record(totalNanos - serializationNanos);
+        if (failed) {
+            errors.increment();
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public LatencyHistogram getTotal() {
+        return total;
+    }
+
+    public LatencyHistogram getSerialization() {
+        return serialization;
+    }
+
+    public LatencyHistogram getDriver() {
+        return driver;
+    }
+
+    @Override
+    public long getCount() {
+        return total.getCount();
+    }
+
+    @Override
+    public long getErrorCount() {
+        return errors.sum();
+    }
+
+    @Override
+    public double getMeanMicros() {
+        return total.getMean() / 1000;
+    }
+
+    @Override
+    public long getP50Micros() {
+        return total.getPercentile(50) / 1000;
+    }
+
+    @Override
+    public long getP99Micros() {
+        return total.getPercentile(99) / 1000;
+    }
+
+    @Override
+    public long getMaxMicros() {
+        return total.getMax() / 1000;
+    }
+
+    @Override
+    public double getSerializationMeanMicros() {
+        return serialization.getMean() / 1000;
+    }
+
+    @Override
+    public long getSerializationP99Micros() {
+        return serialization.getPercentile(99) / 1000;
+    }
+
+    @Override
+    public double getDriverMeanMicros() {
+        return driver.getMean() / 1000;
+    }
+
+    @Override
+    public long getDriverP99Micros() {
+        return driver.getPercentile(99) / 1000;
+    }
+
+    @Override
+    public void reset() {
+        total.reset();
+        serialization.reset();
+        driver.reset();
+        errors.reset();
+    }
+
+    @Override
+    public String toString() {
+        return name + "{count=" + getCount() + ", errors=" + getErrorCount() + ", mean=" + String.format("%.1f", getMeanMicros()) + "µs, p50=" + getP50Micros() + "µs, p99=" + getP99Micros() + "µs, max=" + getMaxMicros() + "µs, serialization p99=" + getSerializationP99Micros() + "µs, driver p99=" + getDriverP99Micros() + "µs}";
+    }
+
+}
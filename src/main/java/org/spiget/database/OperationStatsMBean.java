@@ -0,0 +1,30 @@
+package org.spiget.database;
+
+/**
+ * JMX view of {@link OperationStats}. Durations are in microseconds.
+ */
+public interface OperationStatsMBean {
+
+    long getCount();
+
+    long getErrorCount();
+
+    double getMeanMicros();
+
+    long getP50Micros();
+
+    long getP99Micros();
+
+    long getMaxMicros();
+
+    double getSerializationMeanMicros();
+
+    long getSerializationP99Micros();
+
+    double getDriverMeanMicros();
+
+    long getDriverP99Micros();
+
+    void reset();
+
+}
@@ -0,0 +1,296 @@
+package org.spiget.database;
+
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+import org.bson.BsonArray;
+import org.bson.BsonBinary;
+import org.bson.BsonDocument;
+import org.bson.BsonInt32;
+import org.bson.BsonInt64;
+import org.bson.BsonString;
+import org.bson.BsonValue;
+import org.bson.conversions.Bson;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Moves large string fields of resource documents into a content-addressed side collection.
+ * <p>
+ * Each payload is stored gzip compressed under the SHA-256 of its content. The resource document keeps a
+ * <code>payloads</code> array of <code>{field, hash, size}</code> references instead of the field itself.
+ * Since payloads are addressed by content, an unchanged payload is never written again.
+ * <p>
+ * Payloads are stored before the resource document which references them. Payloads of failed resource writes and of replaced contents are left behind
+ * (they may still be shared with other resources), and removed by {@link #sweep(DocumentStore, long)} once they haven't been used for a grace period.
+ */
+class PayloadStore {
+
+    static final String REFERENCES_FIELD = "payloads";
+
+    // A used payload's "touched" time is refreshed at most this often; sweeps keep everything touched more recently than their grace period
+    static final long TOUCH_INTERVAL_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    private static final int SWEEP_CHUNK_SIZE = 1000;
+
+    private final Supplier<DocumentStore>                 store;
+    private final int                                     threshold;
+    private final List<String>                            fields;
+
+    // Hashes known to be stored already, with the time they were last touched, to skip even the $setOnInsert round trip
+    private final Map<String, Long> knownHashes = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+            return size() > 10000;
+        }
+    };
+
+    PayloadStore(Supplier<DocumentStore> store, int threshold, List<String> fields) {
+        this.store = store;
+        this.threshold = threshold;
+        this.fields = fields;
+    }
+
+    /**
+     * Stores the payload fields of the document which are larger than the threshold, and replaces them by references
+     *
+     * @return the top-level fields which were removed from the document
+     */
+    List<String> offload(BsonDocument document) {
+        BsonArray references = new BsonArray();
+        List<String> removed = new ArrayList<>();
+        for (String field : fields) {
+            BsonDocument parent = parent(document, field, false);
+            if (parent == null) { continue; }
+            String name = leaf(field);
+            BsonValue value = parent.get(name);
+            if (value == null || !value.isString()) { continue; }
+            byte[] bytes = value.asString().getValue().getBytes(StandardCharsets.UTF_8);
+            if (bytes.length < threshold) { continue; }
+
+            String hash = sha256(bytes);
+            store(hash, bytes);
+            parent.remove(name);
+            if (parent == document) {
+                removed.add(name);
+            }
+            references.add(new BsonDocument("field", new BsonString(field))
+                    .append("hash", new BsonString(hash))
+                    .append("size", new BsonInt32(bytes.length)));
+        }
+        // Always written, so references of payloads which are inline again get replaced
+        document.append(REFERENCES_FIELD, references);
+        return removed;
+    }
+
+    private void store(String hash, byte[] bytes) {
+        long now = System.currentTimeMillis();
+        synchronized (knownHashes) {
+            Long touched = knownHashes.get(hash);
+            if (touched != null && now - touched < TOUCH_INTERVAL_MILLIS) { return; }
+        }
+        store.get().updateOne(Filters.eq("_id", hash),
+                new BsonDocument("$setOnInsert", new BsonDocument("data", new BsonBinary(gzip(bytes)))
+                        .append("size", new BsonInt32(bytes.length))
+                        .append("encoding", new BsonString("gzip")))
+                        .append("$set", new BsonDocument("touched", new BsonInt64(now))),
+                true);
+        synchronized (knownHashes) {
+            knownHashes.put(hash, now);
+        }
+    }
+
+    /**
+     * Deletes the payloads which no resource references and which haven't been used for the grace period.
+     * Loads the hashes referenced by all resources, so this is meant for occasional maintenance runs.
+     *
+     * @param graceMillis has to be longer than {@link #TOUCH_INTERVAL_MILLIS}, so payloads reused without a write (known hashes) are never candidates
+     * @return number of deleted payloads
+     */
+    int sweep(DocumentStore resources, long graceMillis) {
+        if (graceMillis <= TOUCH_INTERVAL_MILLIS) { throw new IllegalArgumentException("grace must be longer than " + TOUCH_INTERVAL_MILLIS + "ms"); }
+        Bson unused = Filters.or(Filters.lt("touched", System.currentTimeMillis() - graceMillis), Filters.exists("touched", false));
+
+        // Candidates first: payloads referenced by resources written after the scan below were touched recently, so aren't candidates
+        List<String> candidates = new ArrayList<>();
+        for (BsonDocument payload : store.get().find(unused, Projections.include("_id"), null, 0, BsonDocument.class)) {
+            candidates.add(payload.getString("_id").getValue());
+        }
+        if (candidates.isEmpty()) { return 0; }
+
+        Set<String> referenced = new HashSet<>();
+        for (BsonDocument resource : resources.find(Filters.exists(REFERENCES_FIELD), Projections.include(REFERENCES_FIELD), null, 0, BsonDocument.class)) {
+            for (BsonValue reference : references(resource)) {
+                referenced.add(reference.asDocument().getString("hash").getValue());
+            }
+        }
+        candidates.removeAll(referenced);
+
+        int deleted = 0;
+        for (int i = 0; i < candidates.size(); i += SWEEP_CHUNK_SIZE) {
+            List<String> chunk = candidates.subList(i, Math.min(candidates.size(), i + SWEEP_CHUNK_SIZE));
+            // Checked again, in case a payload was reused since it was found
+            deleted += store.get().deleteMany(Filters.and(Filters.in("_id", chunk), unused)).getDeletedCount();
+            synchronized (knownHashes) {
+                knownHashes.keySet().removeAll(chunk);
+            }
+        }
+        return deleted;
+    }
+
+    /**
+     * Puts the referenced payloads of the view's fields back into the documents, with one query for all of them, and removes the references
+     */
+    void restore(List<BsonDocument> documents, EntityView view) {
+        Set<String> hashes = referencedHashes(documents, view);
+        Map<String, String> payloads = hashes.isEmpty() ? Collections.emptyMap() : load(hashes);
+        restore(documents, view, payloads);
+    }
+
+    /**
+     * @return the hashes of the payloads of the view's fields the documents reference
+     */
+    static Set<String> referencedHashes(List<BsonDocument> documents, EntityView view) {
+        Set<String> hashes = new LinkedHashSet<>();
+        for (BsonDocument document : documents) {
+            for (BsonValue reference : references(document)) {
+                if (!inView(reference.asDocument(), view)) { continue; }
+                hashes.add(reference.asDocument().getString("hash").getValue());
+            }
+        }
+        return hashes;
+    }
+
+    /**
+     * Puts the loaded payloads back into the documents and removes the references.
+     * Fields which are stored inline win over references, since they were written after them by a client without offloading.
+     */
+    static void restore(List<BsonDocument> documents, EntityView view, Map<String, String> payloads) {
+        for (BsonDocument document : documents) {
+            for (BsonValue value : references(document)) {
+                BsonDocument reference = value.asDocument();
+                if (!inView(reference, view)) { continue; }
+                String payload = payloads.get(reference.getString("hash").getValue());
+                if (payload == null) { continue; }
+                String field = reference.getString("field").getValue();
+                BsonDocument parent = parent(document, field, true);
+                if (!parent.containsKey(leaf(field))) {
+                    parent.put(leaf(field), new BsonString(payload));
+                }
+            }
+            document.remove(REFERENCES_FIELD);
+        }
+    }
+
+    /**
+     * @return the payload of the field, or <code>null</code> if it isn't offloaded in the document
+     */
+    String load(BsonDocument document, String field) {
+        for (BsonValue value : references(document)) {
+            BsonDocument reference = value.asDocument();
+            if (field.equals(reference.getString("field").getValue())) {
+                String hash = reference.getString("hash").getValue();
+                return load(Collections.singleton(hash)).get(hash);
+            }
+        }
+        return null;
+    }
+
+    private Map<String, String> load(Set<String> hashes) {
+        return decompress(store.get().find(Filters.in("_id", hashes), null, null, 0, BsonDocument.class));
+    }
+
+    /**
+     * @return the contents of the stored payload documents, by hash
+     */
+    static Map<String, String> decompress(List<BsonDocument> stored) {
+        Map<String, String> payloads = new HashMap<>();
+        for (BsonDocument payload : stored) {
+            payloads.put(payload.getString("_id").getValue(), new String(gunzip(payload.getBinary("data").getData()), StandardCharsets.UTF_8));
+        }
+        return payloads;
+    }
+
+    private static boolean inView(BsonDocument reference, EntityView view) {
+        return view.includes(reference.getString("field").getValue());
+    }
+
+    private static List<BsonValue> references(BsonDocument document) {
+        BsonValue references = document.get(REFERENCES_FIELD);
+        if (references == null || !references.isArray()) { return Collections.emptyList(); }
+        return references.asArray().getValues();
+    }
+
+    private static BsonDocument parent(BsonDocument document, String path, boolean create) {
+        int dot = path.indexOf('.');
+        if (dot < 0) { return document; }
+        String name = path.substring(0, dot);
+        BsonValue child = document.get(name);
+        if (child == null || !child.isDocument()) {
+            if (!create) { return null; }
+            child = new BsonDocument();
+            document.put(name, child);
+        }
+        return parent(child.asDocument(), path.substring(dot + 1), create);
+    }
+
+    private static String leaf(String path) {
+        return path.substring(path.lastIndexOf('.') + 1);
+    }
+
+    static String sha256(byte[] bytes) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(bytes);
+            StringBuilder builder = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                builder.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return builder.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static byte[] gzip(byte[] bytes) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length / 2);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+            gzip.write(bytes);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return out.toByteArray();
+    }
+
+    static byte[] gunzip(byte[] bytes) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length * 3);
+        try (GZIPInputStream gzip = new GZIPInputStream(new ByteArrayInputStream(bytes))) {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = gzip.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return out.toByteArray();
+    }
+
+}
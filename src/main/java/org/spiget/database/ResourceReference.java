@@ -0,0 +1,21 @@
+package org.spiget.database;
+
+/**
+ * References of a resource which are stored as id-only stubs and can be resolved by {@link DatabaseClient#getResourcesResolved(java.util.Set, int...)}
+ */
+public enum ResourceReference {
+
+    /**
+     * The full {@link org.spiget.data.author.Author} from the authors collection
+     */
+    AUTHOR,
+    /**
+     * The full {@link org.spiget.data.category.Category} from the categories collection
+     */
+    CATEGORY,
+    /**
+     * The full {@link org.spiget.data.resource.version.ResourceVersion} of the current version from the resource_versions collection
+     */
+    VERSION
+
+}
@@ -0,0 +1,47 @@
+package org.spiget.database;
+
+import com.google.gson.Gson;
+import org.bson.codecs.Codec;
+import org.bson.codecs.configuration.CodecProvider;
+import org.bson.codecs.configuration.CodecRegistry;
+import org.spiget.data.UpdateRequest;
+import org.spiget.data.author.ListedAuthor;
+import org.spiget.data.category.ListedCategory;
+import org.spiget.data.resource.ListedResource;
+import org.spiget.data.resource.ResourceReview;
+import org.spiget.data.resource.update.ResourceUpdate;
+import org.spiget.data.resource.version.ListedResourceVersion;
+import org.spiget.data.webhook.Webhook;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Provides codecs which encode and decode the spiget data model directly to and from BSON, using the matching {@link SpigetGson} instance for each type
+ */
+public class SpigetCodecProvider implements CodecProvider {
+
+    private final Map<Class<?>, Gson> bindings = new LinkedHashMap<>();
+
+    public SpigetCodecProvider() {
+        bindings.put(ListedResource.class, SpigetGson.RESOURCE);
+        bindings.put(ListedResourceVersion.class, SpigetGson.RESOURCE_VERSION);
+        bindings.put(ResourceUpdate.class, SpigetGson.RESOURCE_UPDATE);
+        bindings.put(ResourceReview.class, SpigetGson.RESOURCE_REVIEW);
+        bindings.put(ListedAuthor.class, SpigetGson.AUTHOR);
+        bindings.put(ListedCategory.class, SpigetGson.CATEGORY);
+        bindings.put(Webhook.class, SpigetGson.WEBHOOK);
+        bindings.put(UpdateRequest.class, SpigetGson.UPDATE_REQUEST);
+    }
+
+    @Override
+    public <T> Codec<T> get(Class<T> clazz, CodecRegistry registry) {
+        for (Map.Entry<Class<?>, Gson> entry : bindings.entrySet()) {
+            if (entry.getKey().isAssignableFrom(clazz)) {
+                return new GsonCodec<>(clazz, entry.getValue());
+            }
+        }
+        return null;
+    }
+
+}
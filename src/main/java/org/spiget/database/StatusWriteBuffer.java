@@ -0,0 +1,144 @@
+package org.spiget.database;
+
+import io.sentry.Sentry;
+import lombok.extern.log4j.Log4j2;
+import org.apache.logging.log4j.Level;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Write-behind buffer for the status collection.
+ * Writes are coalesced per key (only the latest value is kept) and flushed as a single bulk write, either periodically or once enough keys are pending.
+ */
+@Log4j2
+class StatusWriteBuffer {
+
+    // ConcurrentHashMap can't hold null values
+    static final Object NULL = new Object();
+
+    private final DatabaseClient client;
+    private final int            maxPending;
+
+    private final Map<String, Object> pending  = new ConcurrentHashMap<>();
+    private final Map<String, Object> inFlight = new ConcurrentHashMap<>();
+
+    private final ScheduledExecutorService executor;
+    private final AtomicBoolean            flushQueued = new AtomicBoolean();
+
+    private volatile boolean closed;
+
+    StatusWriteBuffer(DatabaseClient client, long flushInterval, TimeUnit unit, int maxPending) {
+        this.client = client;
+        this.maxPending = maxPending;
+        this.executor = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("spiget-status-flush"));
+        this.executor.scheduleWithFixedDelay(this::flushQuietly, flushInterval, flushInterval, unit);
+    }
+
+    /**
+     * Buffers the value, or writes it right away once the buffer is closed
+     */
+    void put(String key, Object value) {
+        pending.put(key, value == null ? NULL : value);
+        if (closed) {
+            // Nothing flushes anymore; going through the buffer keeps the order with the final flush
+            flush();
+            return;
+        }
+        if (pending.size() >= maxPending && flushQueued.compareAndSet(false, true)) {
+            try {
+                executor.execute(() -> {
+                    flushQueued.set(false);
+                    flushQuietly();
+                });
+            } catch (RejectedExecutionException e) {
+                // Closed concurrently
+                flushQueued.set(false);
+                flush();
+            }
+        }
+    }
+
+    /**
+     * @return the buffered value (possibly {@link #NULL}), or <code>null</code> if the key has no unwritten value
+     */
+    Object get(String key) {
+        Object value = pending.get(key);
+        if (value == null) { value = inFlight.get(key); }
+        return value;
+    }
+
+    int size() {
+        return pending.size();
+    }
+
+    synchronized BulkWriteSummary flush() {
+        if (pending.isEmpty()) { return new BulkWriteSummary(); }
+
+        Map<String, Object> batch = new LinkedHashMap<>();
+        for (String key : pending.keySet()) {
+            Object value = pending.get(key);
+            if (value == null) { continue; }
+            // Mark as in-flight before removing, so readers always find the value in one of the maps
+            inFlight.put(key, value);
+            pending.remove(key, value);
+            batch.put(key, value == NULL ? null : value);
+        }
+
+        try {
+            BulkWriteSummary summary = client.writeStatuses(batch);
+            for (BulkWriteSummary.ItemError error : summary.getErrors()) {
+                retry(batch, (String) error.getId());
+            }
+            return summary;
+        } catch (RuntimeException e) {
+            // Nothing is known to be written
+            for (String key : batch.keySet()) {
+                retry(batch, key);
+            }
+            throw e;
+        } finally {
+            for (Map.Entry<String, Object> entry : batch.entrySet()) {
+                inFlight.remove(entry.getKey(), entry.getValue() == null ? NULL : entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Puts the key back for the next flush, unless a newer value has been written in the meantime
+     */
+    private void retry(Map<String, Object> batch, String key) {
+        Object value = batch.get(key);
+        pending.putIfAbsent(key, value == null ? NULL : value);
+    }
+
+    private void flushQuietly() {
+        try {
+            BulkWriteSummary summary = flush();
+            if (!summary.getErrors().isEmpty()) {
+                log.warn("Failed to write " + summary.getErrors().size() + " status keys, retrying with the next flush");
+            }
+        } catch (Exception e) {
+            Sentry.captureException(e);
+            log.log(Level.WARN, "Failed to flush status writes", e);
+        }
+    }
+
+    void close() {
+        closed = true;
+        executor.shutdown();
+        try {
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+    }
+
+}
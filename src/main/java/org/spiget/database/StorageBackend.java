@@ -0,0 +1,15 @@
+package org.spiget.database;
+
+import java.io.Closeable;
+
+/**
+ * Where a {@link DatabaseClient} keeps its collections: {@link MongoStorageBackend} (the default, created on {@link DatabaseClient#connect(int)}) or the {@link InMemoryStorageBackend}
+ */
+public interface StorageBackend extends Closeable {
+
+    /**
+     * @return the store of the named collection, e.g. <code>resources</code> or <code>status</code>
+     */
+    DocumentStore getStore(String collection);
+
+}
@@ -0,0 +1,67 @@
+package org.spiget.database;
+
+import org.bson.BsonValue;
+import org.spiget.data.UpdateRequest;
+
+/**
+ * An update request claimed from the {@link UpdateRequestQueue} by one consumer
+ */
+public class UpdateRequestLease {
+
+    private final BsonValue     id;
+    private final UpdateRequest request;
+    private final String        owner;
+    private final int           deliveries;
+    private       long          expires;
+
+    UpdateRequestLease(BsonValue id, UpdateRequest request, String owner, long expires, int deliveries) {
+        this.id = id;
+        this.request = request;
+        this.owner = owner;
+        this.expires = expires;
+        this.deliveries = deliveries;
+    }
+
+    /**
+     * @return _id of the queued document
+     */
+    public BsonValue getId() {
+        return id;
+    }
+
+    public UpdateRequest getRequest() {
+        return request;
+    }
+
+    public String getOwner() {
+        return owner;
+    }
+
+    /**
+     * @return expiry of the lease, in epoch milliseconds
+     */
+    public long getExpires() {
+        return expires;
+    }
+
+    void setExpires(long expires) {
+        this.expires = expires;
+    }
+
+    /**
+     * @return how often this request has been claimed, including this time. Values above 1 mean an earlier consumer's lease ran out.
+     */
+    public int getDeliveries() {
+        return deliveries;
+    }
+
+    public boolean isExpired() {
+        return System.currentTimeMillis() >= expires;
+    }
+
+    @Override
+    public String toString() {
+        return "UpdateRequestLease{id=" + id + ", owner='" + owner + "', expires=" + expires + ", deliveries=" + deliveries + "}";
+    }
+
+}
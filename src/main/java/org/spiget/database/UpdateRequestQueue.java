@@ -0,0 +1,158 @@
+package org.spiget.database;
+
+import com.mongodb.MongoWriteException;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.result.UpdateResult;
+import lombok.extern.log4j.Log4j2;
+import org.bson.BsonBoolean;
+import org.bson.BsonDocument;
+import org.bson.BsonInt64;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.conversions.Bson;
+import org.spiget.data.UpdateRequest;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Multi-consumer work queue on top of the update_requests collection.
+ * <p>
+ * Consumers {@link #claim(String, int, long, TimeUnit) claim} requests with a lease, which hides them from other consumers until it expires.
+ * A request whose lease ran out (e.g. because its worker died) is delivered again.
+ * Finished requests are removed with {@link #complete(UpdateRequestLease)}.
+ * <p>
+ * Leases are stored as <code>lease: { owner, expires }</code> (expiry in epoch milliseconds) on the request document, so the legacy {@link DatabaseClient#getUpdateRequests(int)} keeps working.
+ * Requests waiting for their first claim are marked <code>pending: true</code>; the partial unique index on those (see {@link DatabaseClient#ensureIndexes(boolean)}) keeps concurrent enqueues from creating duplicates.
+ */
+@Log4j2
+public class UpdateRequestQueue {
+
+    static final String PENDING_FIELD = "pending";
+
+    private static final int DUPLICATE_KEY = 11000;
+
+    private final DatabaseClient client;
+
+    public UpdateRequestQueue(DatabaseClient client) {
+        this.client = client;
+    }
+
+    private DocumentStore store() {
+        return client.store("update_requests");
+    }
+
+    /**
+     * Adds a request to the queue, unless an unclaimed request for the same requestedId is already waiting.
+     * Requests which are currently being worked on don't absorb new ones, since the worker might already have fetched stale data.
+     *
+     * @return <code>true</code> if a new request was queued, <code>false</code> if it was merged into an existing one
+     */
+    public boolean enqueue(UpdateRequest request) {
+        BsonDocument document = client.toBson(SpigetGson.UPDATE_REQUEST, request);
+        document.remove("_id");
+        document.remove("lease");
+        if (!document.containsKey("requested")) {
+            document.append("requested", new BsonInt64(System.currentTimeMillis() / 1000));
+        }
+        document.append(PENDING_FIELD, BsonBoolean.TRUE);
+        Bson filter = Filters.and(Filters.eq("requestedId", request.getRequestedId()), Filters.exists("lease", false));
+        Bson update = new Document("$setOnInsert", document);
+        try {
+            return store().updateOne(filter, update, true).getUpsertedId() != null;
+        } catch (MongoWriteException e) {
+            if (e.getCode() != DUPLICATE_KEY) { throw e; }
+            // A concurrent enqueue inserted the same requestedId first; this upsert now matches its document
+            return store().updateOne(filter, update, true).getUpsertedId() != null;
+        }
+    }
+
+    /**
+     * Atomically claims up to <code>limit</code> of the oldest available requests (unclaimed, or with an expired lease)
+     *
+     * @param owner identifier of the consumer, e.g. the crawler's node name
+     */
+    public List<UpdateRequestLease> claim(String owner, int limit, long leaseTime, TimeUnit unit) {
+        DocumentStore store = store();
+        Function<RawBsonDocument, UpdateRequest> decoder = client.rawDecoder(SpigetGson.UPDATE_REQUEST, UpdateRequest.class);
+        Document order = new Document("requested", 1);
+
+        List<UpdateRequestLease> leases = new ArrayList<>();
+        while (leases.size() < limit) {
+            long now = System.currentTimeMillis();
+            long expires = now + unit.toMillis(leaseTime);
+            RawBsonDocument document = store.findOneAndUpdate(
+                    availableFilter(now),
+                    new Document("$set", new Document("lease", new Document("owner", owner).append("expires", expires)))
+                            .append("$unset", new Document(PENDING_FIELD, ""))
+                            .append("$inc", new Document("deliveries", 1)),
+                    order,
+                    RawBsonDocument.class);
+            if (document == null) { break; }
+
+            int deliveries = document.containsKey("deliveries") ? document.getNumber("deliveries").intValue() : 1;
+            if (deliveries > 1) {
+                log.info("Re-delivering update request " + document.get("_id") + " to " + owner + " (delivery #" + deliveries + ")");
+            }
+            leases.add(new UpdateRequestLease(document.get("_id"), decoder.apply(document), owner, expires, deliveries));
+        }
+        return leases;
+    }
+
+    /**
+     * Extends a lease which is still held by its owner
+     *
+     * @return <code>false</code> if the lease has been lost, i.e. it expired and was claimed by another consumer
+     */
+    public boolean renew(UpdateRequestLease lease, long leaseTime, TimeUnit unit) {
+        long expires = System.currentTimeMillis() + unit.toMillis(leaseTime);
+        UpdateResult result = store().updateOne(heldFilter(lease), new Document("$set", new Document("lease.expires", expires)), false);
+        if (result.getMatchedCount() > 0) {
+            lease.setExpires(expires);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Acknowledges a finished request and removes it from the queue
+     *
+     * @return <code>false</code> if the lease has been lost in the meantime (the request was left for its new owner)
+     */
+    public boolean complete(UpdateRequestLease lease) {
+        return store().deleteOne(heldFilter(lease)).getDeletedCount() > 0;
+    }
+
+    /**
+     * Gives a claimed request back to the queue without processing it.
+     * If the same requestedId was queued again in the meantime, the released request is merged into that one.
+     *
+     * @return <code>false</code> if the lease has been lost in the meantime
+     */
+    public boolean release(UpdateRequestLease lease) {
+        try {
+            return store().updateOne(heldFilter(lease), new Document("$unset", new Document("lease", "")).append("$set", new Document(PENDING_FIELD, true)), false).getMatchedCount() > 0;
+        } catch (MongoWriteException e) {
+            if (e.getCode() != DUPLICATE_KEY) { throw e; }
+            return store().deleteOne(heldFilter(lease)).getDeletedCount() > 0;
+        }
+    }
+
+    /**
+     * @return number of requests which are waiting to be claimed
+     */
+    public long countAvailable() {
+        return store().count(availableFilter(System.currentTimeMillis()));
+    }
+
+    private Bson availableFilter(long now) {
+        return Filters.or(Filters.exists("lease", false), Filters.lt("lease.expires", now));
+    }
+
+    private Bson heldFilter(UpdateRequestLease lease) {
+        return Filters.and(Filters.eq("_id", lease.getId()), Filters.eq("lease.owner", lease.getOwner()), Filters.eq("lease.expires", lease.getExpires()));
+    }
+
+}
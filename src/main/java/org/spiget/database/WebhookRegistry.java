@@ -0,0 +1,448 @@
+package org.spiget.database;
+
+import com.mongodb.MongoCommandException;
+import com.mongodb.MongoException;
+import com.mongodb.client.ChangeStreamIterable;
+import com.mongodb.client.MongoChangeStreamCursor;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import com.mongodb.client.model.changestream.FullDocument;
+import io.sentry.Sentry;
+import lombok.extern.log4j.Log4j2;
+import org.apache.logging.log4j.Level;
+import org.bson.BsonDocument;
+import org.bson.BsonObjectId;
+import org.bson.BsonString;
+import org.bson.BsonValue;
+import org.bson.RawBsonDocument;
+import org.spiget.data.webhook.Webhook;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * In-memory event type → webhooks index for dispatching events without querying the webhooks collection every time.
+ * <p>
+ * The index follows the collection through a change stream. On deployments without change streams (standalone servers) it falls back to polling:
+ * every poll interval it loads the ids and <code>modified</code> times of all webhooks, and then only the new and modified documents.
+ * Writers which don't set <code>modified</code> are picked up by a full reload every {@value #FULL_RELOAD_POLLS} polls.
+ * Writes made through {@link DatabaseClient#updateWebhookStatus(Webhook)} and {@link DatabaseClient#deleteWebhook(Webhook)} are applied immediately.
+ * <p>
+ * Lookups are lock-free and return immutable snapshots.
+ */
+@Log4j2
+public class WebhookRegistry implements Closeable {
+
+    /**
+     * Modification time of a webhook document in epoch millis, set by the status writes of {@link DatabaseClient}
+     */
+    static final String MODIFIED_FIELD = "modified";
+
+    static final int FULL_RELOAD_POLLS = 10;
+
+    private final DatabaseClient                   client;
+    private final long                             pollIntervalMillis;
+    private final Function<RawBsonDocument, Webhook> decoder;
+
+    // Guarded by this
+    private final Map<String, Entry> byId = new HashMap<>();
+    // Guarded by this: changes applied while a load reads the collection, replayed on top of what it read
+    private List<Consumer<Map<String, Entry>>> replay;
+    // Loads read the collection outside of the index lock, but one at a time
+    private final Object loadLock = new Object();
+
+    private volatile Map<String, List<Webhook>> byEvent = Collections.emptyMap();
+    private volatile List<Webhook>              all     = Collections.emptyList();
+
+    private final    Thread  thread;
+    private volatile boolean closed;
+    private volatile boolean polling;
+
+    WebhookRegistry(DatabaseClient client, long pollInterval, TimeUnit unit) {
+        this.client = client;
+        this.pollIntervalMillis = unit.toMillis(pollInterval);
+        this.decoder = client.rawDecoder(SpigetGson.WEBHOOK, Webhook.class);
+        // Other storage backends have no change streams
+        this.polling = !(client.getStorage() instanceof MongoStorageBackend);
+        this.thread = new DaemonThreadFactory("spiget-webhook-registry").newThread(this::run);
+    }
+
+    void start() {
+        reload();
+        thread.start();
+    }
+
+    /**
+     * @param eventType event to look up, or <code>null</code> for all webhooks
+     * @return the webhooks subscribed to the event
+     */
+    public List<Webhook> getWebhooks(String eventType) {
+        if (eventType == null) { return all; }
+        List<Webhook> webhooks = byEvent.get(eventType);
+        return webhooks != null ? webhooks : Collections.emptyList();
+    }
+
+    public int size() {
+        return all.size();
+    }
+
+    /**
+     * @return <code>true</code> if the index is refreshed by polling, because change streams aren't available
+     */
+    public boolean isPolling() {
+        return polling;
+    }
+
+    /**
+     * Replaces the whole index with the current content of the webhooks collection
+     */
+    public void reload() {
+        synchronized (loadLock) {
+            startRecording();
+            try {
+                Map<String, Entry> loaded = new HashMap<>();
+                for (RawBsonDocument document : client.store("webhooks").find(null, null, null, 0, RawBsonDocument.class)) {
+                    Entry entry = toEntry(document);
+                    loaded.put(entry.id, entry);
+                }
+                synchronized (this) {
+                    replay(loaded);
+                    byId.clear();
+                    byId.putAll(loaded);
+                    rebuild();
+                }
+            } finally {
+                stopRecording();
+            }
+        }
+    }
+
+    /**
+     * Loads the ids and modification times of all webhooks, and then only the documents which are new or were modified since they were indexed
+     */
+    void refresh() {
+        synchronized (loadLock) {
+            startRecording();
+            try {
+                Map<String, BsonDocument> stored = new HashMap<>();
+                for (BsonDocument document : client.store("webhooks").find(null, Projections.include("_id", MODIFIED_FIELD), null, 0, BsonDocument.class)) {
+                    stored.put(key(document.get("_id")), document);
+                }
+
+                Set<String> removed;
+                List<BsonValue> changed = new ArrayList<>();
+                synchronized (this) {
+                    removed = new HashSet<>(byId.keySet());
+                    removed.removeAll(stored.keySet());
+                    for (Map.Entry<String, BsonDocument> document : stored.entrySet()) {
+                        Entry entry = byId.get(document.getKey());
+                        if (entry == null || modified(document.getValue()) > entry.modified) {
+                            changed.add(document.getValue().get("_id"));
+                        }
+                    }
+                }
+
+                List<Entry> loaded = new ArrayList<>();
+                if (!changed.isEmpty()) {
+                    for (RawBsonDocument document : client.store("webhooks").find(Filters.in("_id", changed), null, null, 0, RawBsonDocument.class)) {
+                        loaded.add(toEntry(document));
+                    }
+                }
+                if (removed.isEmpty() && loaded.isEmpty()) { return; }
+
+                synchronized (this) {
+                    byId.keySet().removeAll(removed);
+                    for (Entry entry : loaded) {
+                        byId.put(entry.id, entry);
+                    }
+                    replay(byId);
+                    rebuild();
+                }
+            } finally {
+                stopRecording();
+            }
+        }
+    }
+
+    private synchronized void startRecording() {
+        replay = new ArrayList<>();
+    }
+
+    private synchronized void stopRecording() {
+        replay = null;
+    }
+
+    // Must hold the lock
+    private void replay(Map<String, Entry> loaded) {
+        for (Consumer<Map<String, Entry>> change : replay) {
+            change.accept(loaded);
+        }
+    }
+
+    /**
+     * Applies the change to the index, and records it for the load in flight, if any. Must hold the lock.
+     */
+    private void change(Consumer<Map<String, Entry>> change) {
+        change.accept(byId);
+        if (replay != null) {
+            replay.add(change);
+        }
+    }
+
+    /**
+     * Persists the failure counters of many webhooks with one bulk write, and applies them to the index
+     */
+    public BulkWriteSummary updateWebhookStatuses(Collection<? extends Webhook> webhooks) {
+        return client.updateWebhookStatuses(webhooks);
+    }
+
+    void applyStatus(Webhook webhook, long modified) {
+        applyStatuses(Collections.singletonList(webhook), modified);
+    }
+
+    /**
+     * Replaces the indexed webhooks with copies carrying the new failure counters; published snapshots are never modified
+     *
+     * @param modified the modification time written with the counters
+     */
+    synchronized void applyStatuses(Collection<? extends Webhook> webhooks, long modified) {
+        boolean changed = false;
+        for (Webhook webhook : webhooks) {
+            Entry entry = byId.get(key(webhook.id));
+            if (entry == null) { continue; }
+            Entry updated = entry.withStatus(webhook, modified);
+            // Replays copy the counters from the indexed copy, the caller may keep modifying its webhook
+            change(map -> map.computeIfPresent(entry.id, (id, indexed) -> indexed == entry ? updated : indexed.withStatus(updated.webhook, modified)));
+            changed = true;
+        }
+        if (changed) {
+            rebuild();
+        }
+    }
+
+    synchronized void applyDelete(Webhook webhook) {
+        String id = key(webhook.id);
+        if (byId.containsKey(id)) {
+            change(map -> map.remove(id));
+            rebuild();
+        }
+    }
+
+    private MongoCollection<RawBsonDocument> collection() {
+        return client.getWebhooksCollection().withDocumentClass(RawBsonDocument.class);
+    }
+
+    private Entry toEntry(RawBsonDocument document) {
+        Set<String> events = new LinkedHashSet<>();
+        BsonValue eventsValue = document.get("events");
+        if (eventsValue != null && eventsValue.isArray()) {
+            for (BsonValue event : eventsValue.asArray()) {
+                if (event.isString()) {
+                    events.add(event.asString().getValue());
+                }
+            }
+        }
+        return new Entry(key(document.get("_id")), decoder.apply(document), events, modified(document));
+    }
+
+    /**
+     * @return the modification time of the document, or 0 if it has none
+     */
+    private static long modified(BsonDocument document) {
+        BsonValue modified = document.get(MODIFIED_FIELD);
+        return modified != null && modified.isNumber() ? modified.asNumber().longValue() : 0;
+    }
+
+    // Must hold the lock
+    private void rebuild() {
+        Map<String, List<Webhook>> index = new HashMap<>();
+        List<Webhook> list = new ArrayList<>(byId.size());
+        for (Entry entry : byId.values()) {
+            list.add(entry.webhook);
+            for (String event : entry.events) {
+                index.computeIfAbsent(event, k -> new ArrayList<>()).add(entry.webhook);
+            }
+        }
+        for (Map.Entry<String, List<Webhook>> event : index.entrySet()) {
+            event.setValue(Collections.unmodifiableList(event.getValue()));
+        }
+        byEvent = index;
+        all = Collections.unmodifiableList(list);
+    }
+
+    private void run() {
+        BsonDocument resumeToken = null;
+        int polls = 0;
+        while (!closed) {
+            if (polling) {
+                if (!sleep()) { return; }
+                try {
+                    if (++polls % FULL_RELOAD_POLLS == 0) {
+                        reload();
+                    } else {
+                        refresh();
+                    }
+                } catch (MongoException e) {
+                    log.log(Level.WARN, "Failed to refresh webhooks", e);
+                }
+                continue;
+            }
+
+            try {
+                ChangeStreamIterable<RawBsonDocument> iterable = collection().watch()
+                        .fullDocument(FullDocument.UPDATE_LOOKUP)
+                        .maxAwaitTime(1, TimeUnit.SECONDS);
+                if (resumeToken != null) {
+                    iterable = iterable.resumeAfter(resumeToken);
+                }
+                try (MongoChangeStreamCursor<ChangeStreamDocument<RawBsonDocument>> cursor = iterable.cursor()) {
+                    if (resumeToken == null) {
+                        // Anything that changed before the stream was opened is covered by this reload
+                        reload();
+                    }
+                    while (!closed) {
+                        ChangeStreamDocument<RawBsonDocument> change = cursor.tryNext();
+                        resumeToken = cursor.getResumeToken();
+                        if (change != null && !apply(change)) {
+                            resumeToken = null;
+                            break;
+                        }
+                    }
+                }
+            } catch (MongoCommandException e) {
+                if (CHANGE_STREAMS_UNSUPPORTED.contains(e.getErrorCode())) {
+                    log.info("Change streams are not available (" + e.getErrorMessage() + "), polling webhooks every " + pollIntervalMillis + "ms");
+                    polling = true;
+                } else if (resumeToken != null) {
+                    // Most likely the resume token fell off the oplog; start over with a full reload
+                    log.log(Level.WARN, "Failed to resume webhook change stream", e);
+                    resumeToken = null;
+                } else {
+                    // Authentication, failover or other transient errors; change streams may well work once they're resolved
+                    if (closed) { return; }
+                    Sentry.captureException(e);
+                    log.log(Level.WARN, "Failed to open webhook change stream, retrying in " + pollIntervalMillis + "ms", e);
+                    if (!sleep()) { return; }
+                }
+            } catch (MongoException e) {
+                if (closed) { return; }
+                Sentry.captureException(e);
+                log.log(Level.WARN, "Webhook change stream failed", e);
+                if (!sleep()) { return; }
+            }
+        }
+    }
+
+    /**
+     * @return <code>false</code> if the stream has been invalidated and needs to be reopened
+     */
+    private boolean apply(ChangeStreamDocument<RawBsonDocument> change) {
+        switch (change.getOperationType()) {
+            case INSERT:
+            case UPDATE:
+            case REPLACE:
+                RawBsonDocument document = change.getFullDocument();
+                synchronized (this) {
+                    if (document != null) {
+                        Entry entry = toEntry(document);
+                        change(map -> map.put(entry.id, entry));
+                    } else if (change.getDocumentKey() != null) {
+                        // Deleted again before the lookup
+                        String id = key(change.getDocumentKey().get("_id"));
+                        change(map -> map.remove(id));
+                    }
+                    rebuild();
+                }
+                return true;
+            case DELETE:
+                synchronized (this) {
+                    String id = key(change.getDocumentKey().get("_id"));
+                    change(map -> map.remove(id));
+                    rebuild();
+                }
+                return true;
+            case DROP:
+            case RENAME:
+            case DROP_DATABASE:
+            case INVALIDATE:
+                synchronized (this) {
+                    change(Map::clear);
+                    rebuild();
+                }
+                return false;
+            default:
+                return true;
+        }
+    }
+
+    private boolean sleep() {
+        try {
+            Thread.sleep(pollIntervalMillis);
+            return !closed;
+        } catch (InterruptedException e) {
+            return false;
+        }
+    }
+
+    static String key(Object id) {
+        if (id instanceof BsonString) { return ((BsonString) id).getValue(); }
+        if (id instanceof BsonObjectId) { return ((BsonObjectId) id).getValue().toHexString(); }
+        if (id instanceof BsonValue && ((BsonValue) id).isNumber()) { return String.valueOf(((BsonValue) id).asNumber().longValue()); }
+        return String.valueOf(id);
+    }
+
+    /**
+     * Stops following the collection, and waits for the refresh thread to exit
+     */
+    @Override
+    public void close() {
+        closed = true;
+        thread.interrupt();
+        if (Thread.currentThread() == thread) { return; }
+        try {
+            thread.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Server errors of the $changeStream stage on deployments which don't support it (standalone servers, old versions)
+    private static final Set<Integer> CHANGE_STREAMS_UNSUPPORTED = new HashSet<>(Arrays.asList(40573, 40324, 115));
+
+    private static class Entry {
+
+        final String      id;
+        final Webhook     webhook;
+        final Set<String> events;
+        final long        modified;
+
+        Entry(String id, Webhook webhook, Set<String> events, long modified) {
+            this.id = id;
+            this.webhook = webhook;
+            this.events = events;
+            this.modified = modified;
+        }
+
+        Entry withStatus(Webhook status, long modified) {
+            Webhook copy = SpigetGson.WEBHOOK.fromJson(SpigetGson.WEBHOOK.toJsonTree(webhook), Webhook.class);
+            copy.failedConnections = status.failedConnections;
+            copy.failStatus = status.failStatus;
+            return new Entry(id, copy, events, Math.max(this.modified, modified));
+        }
+    }
+
+}
@@ -0,0 +1,304 @@
+package org.spiget.database;
+
+import com.mongodb.MongoException;
+import com.mongodb.client.ClientSession;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.DeleteManyModel;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.WriteModel;
+import io.sentry.Sentry;
+import lombok.extern.log4j.Log4j2;
+import org.apache.logging.log4j.Level;
+import org.bson.BsonDocument;
+import org.bson.Document;
+import org.spiget.data.UpdateRequest;
+import org.spiget.data.author.ListedAuthor;
+import org.spiget.data.resource.ListedResource;
+import org.spiget.data.resource.ResourceReview;
+import org.spiget.data.resource.update.ResourceUpdate;
+import org.spiget.data.resource.version.ListedResourceVersion;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Unit of work for crawler refreshes: collects the writes of one or many resources across collections, and sends them as one bulk write per collection on {@link #commit()}.
+ * <p>
+ * Without a transaction the collections are written concurrently on the lookup executor. Update requests are deleted last, and only if all other writes succeeded, so a failed refresh stays requested.
+ * With {@link #transactional(boolean)} everything is written in one MongoDB transaction instead; the collections are then written one after another, because a session can't be shared between threads.
+ * <p>
+ * Resources and authors are always written completely, not {@link DatabaseClient#enableDiffWrites(int) diffed}. Payloads are offloaded when the write is added, before the resource itself is written.
+ * Sessions are not thread-safe and can only be committed once.
+ */
+@Log4j2
+public class WriteSession {
+
+    private static final String UPDATE_REQUESTS = "update_requests";
+
+    private final DatabaseClient     client;
+    private final Map<String, Batch> batches = new LinkedHashMap<>();
+    // Invalidated again once the writes completed, so reads racing with the commit can't cache the old documents
+    private final Set<Integer>       resourceIds = new LinkedHashSet<>();
+    private final Set<Integer>       authorIds   = new LinkedHashSet<>();
+
+    private boolean transactional;
+    private boolean committed;
+
+    WriteSession(DatabaseClient client) {
+        this.client = client;
+    }
+
+    /**
+     * Writes everything in one transaction, which needs the {@link MongoStorageBackend} and a replica set or sharded cluster
+     *
+     * @throws UnsupportedOperationException if the client uses a different storage backend
+     */
+    public WriteSession transactional(boolean transactional) {
+        if (transactional && !(client.getStorage() instanceof MongoStorageBackend)) {
+            throw new UnsupportedOperationException("Transactions require the MongoDB storage backend");
+        }
+        this.transactional = transactional;
+        return this;
+    }
+
+    public boolean isTransactional() {
+        return transactional;
+    }
+
+    // Resources
+
+    /**
+     * @see DatabaseClient#updateResource(ListedResource)
+     */
+    public WriteSession updateResource(ListedResource resource) {
+        checkOpen();
+        client.invalidateResource(resource.getId());
+        resourceIds.add(resource.getId());
+        return add("resources", resource.getId(), new UpdateOneModel<>(new Document("_id", resource.getId()), client.resourceUpdate(resource)));
+    }
+
+    public WriteSession updateOrInsertVersion(ListedResource resource, ListedResourceVersion version) {
+        return upsert("resource_versions", version.getId(), client.toBson(SpigetGson.RESOURCE_VERSION, version));
+    }
+
+    public WriteSession updateOrInsertVersions(ListedResource resource, Collection<? extends ListedResourceVersion> versions) {
+        for (ListedResourceVersion version : versions) {
+            updateOrInsertVersion(resource, version);
+        }
+        return this;
+    }
+
+    public WriteSession updateOrInsertUpdate(ListedResource resource, ResourceUpdate update) {
+        return upsert("resource_updates", update.getId(), client.toBson(SpigetGson.RESOURCE_UPDATE, update));
+    }
+
+    public WriteSession updateOrInsertUpdates(ListedResource resource, Collection<? extends ResourceUpdate> updates) {
+        for (ResourceUpdate update : updates) {
+            updateOrInsertUpdate(resource, update);
+        }
+        return this;
+    }
+
+    public WriteSession updateOrInsertReview(ListedResource resource, ResourceReview review) {
+        return upsert("resource_reviews", review.getId(), client.toBson(SpigetGson.RESOURCE_REVIEW, review));
+    }
+
+    public WriteSession updateOrInsertReviews(ListedResource resource, Collection<? extends ResourceReview> reviews) {
+        for (ResourceReview review : reviews) {
+            updateOrInsertReview(resource, review);
+        }
+        return this;
+    }
+
+    // Authors
+
+    /**
+     * @see DatabaseClient#updateAuthor(ListedAuthor)
+     */
+    public WriteSession updateAuthor(ListedAuthor author) {
+        checkOpen();
+        client.invalidateAuthor(author.getId());
+        authorIds.add(author.getId());
+        return add("authors", author.getId(), new UpdateOneModel<>(new Document("_id", author.getId()), client.authorUpdate(author)));
+    }
+
+    public WriteSession updateOrInsertAuthor(ListedAuthor author) {
+        checkOpen();
+        client.invalidateAuthor(author.getId());
+        authorIds.add(author.getId());
+        return upsert("authors", author.getId(), client.toBson(SpigetGson.AUTHOR, author));
+    }
+
+    // Update requests
+
+    /**
+     * @see DatabaseClient#deleteUpdateRequest(UpdateRequest)
+     */
+    public WriteSession deleteUpdateRequest(UpdateRequest request) {
+        return add(UPDATE_REQUESTS, request.getRequestedId(), new DeleteManyModel<>(new Document("requestedId", request.getRequestedId())));
+    }
+
+    /**
+     * @return number of collected writes
+     */
+    public int size() {
+        int size = 0;
+        for (Batch batch : batches.values()) {
+            size += batch.models.size();
+        }
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return batches.isEmpty();
+    }
+
+    /**
+     * Sends all collected writes. Failures are reported in the result, not thrown.
+     *
+     * @throws IllegalStateException if the session has already been committed
+     */
+    public WriteSessionResult commit() {
+        checkOpen();
+        committed = true;
+        try {
+            return client.instrument("commitWriteSession", () -> transactional ? commitTransaction() : commitConcurrently());
+        } finally {
+            for (int id : resourceIds) {
+                client.invalidateResource(id);
+            }
+            for (int id : authorIds) {
+                client.invalidateAuthor(id);
+            }
+        }
+    }
+
+    private WriteSessionResult commitConcurrently() {
+        long start = System.nanoTime();
+        List<CompletableFuture<WriteSessionResult.CollectionResult>> futures = new ArrayList<>();
+        for (Batch batch : batches.values()) {
+            if (batch.collection.equals(UPDATE_REQUESTS)) { continue; }
+            futures.add(CompletableFuture.supplyAsync(() -> write(batch), client.lookupExecutor()));
+        }
+
+        List<WriteSessionResult.CollectionResult> results = new ArrayList<>();
+        boolean failed = false;
+        for (CompletableFuture<WriteSessionResult.CollectionResult> future : futures) {
+            WriteSessionResult.CollectionResult result = future.join();
+            failed |= result.hasErrors();
+            results.add(result);
+        }
+
+        Batch requests = batches.get(UPDATE_REQUESTS);
+        if (requests != null) {
+            if (failed) {
+                log.warn("Not deleting " + requests.models.size() + " update requests, other writes of the session failed");
+                results.add(new WriteSessionResult.CollectionResult(requests.collection, requests.models.size(), new BulkWriteSummary(), 0, true, null));
+            } else {
+                results.add(write(requests));
+            }
+        }
+        return new WriteSessionResult(results, System.nanoTime() - start, false);
+    }
+
+    private WriteSessionResult.CollectionResult write(Batch batch) {
+        long start = System.nanoTime();
+        BulkWriteSummary summary = new BulkWriteSummary();
+        try {
+            DocumentStore store = client.store(batch.collection);
+            int chunkSize = client.getBulkChunkSize();
+            for (int from = 0; from < batch.models.size(); from += chunkSize) {
+                int to = Math.min(from + chunkSize, batch.models.size());
+                store.bulkWrite(batch.models.subList(from, to), batch.ids.subList(from, to), summary);
+            }
+        } catch (RuntimeException e) {
+            Sentry.captureException(e);
+            log.log(Level.WARN, "Write session bulk write of " + batch.models.size() + " operations to " + batch.collection + " failed", e);
+            return failed(batch, e, System.nanoTime() - start);
+        }
+        return new WriteSessionResult.CollectionResult(batch.collection, batch.models.size(), summary, System.nanoTime() - start, false, null);
+    }
+
+    private WriteSessionResult commitTransaction() {
+        long start = System.nanoTime();
+        MongoStorageBackend storage = (MongoStorageBackend) client.getStorage();
+        List<WriteSessionResult.CollectionResult> results = new ArrayList<>();
+        try (ClientSession session = client.startClientSession()) {
+            session.withTransaction(() -> {
+                // The body is run again if the transaction is retried
+                results.clear();
+                for (Batch batch : batches.values()) {
+                    results.add(writeInTransaction(storage, session, batch));
+                }
+                return null;
+            });
+        } catch (MongoException e) {
+            Sentry.captureException(e);
+            log.log(Level.WARN, "Write session transaction of " + size() + " operations failed and was rolled back", e);
+            // Nothing was written, so every collection failed
+            results.clear();
+            for (Batch batch : batches.values()) {
+                results.add(failed(batch, e, 0));
+            }
+        }
+        return new WriteSessionResult(results, System.nanoTime() - start, true);
+    }
+
+    private WriteSessionResult.CollectionResult writeInTransaction(MongoStorageBackend storage, ClientSession session, Batch batch) {
+        long start = System.nanoTime();
+        BulkWriteSummary summary = new BulkWriteSummary();
+        MongoCollection<Document> collection = storage.getCollection(batch.collection);
+        int chunkSize = client.getBulkChunkSize();
+        for (int from = 0; from < batch.models.size(); from += chunkSize) {
+            int to = Math.min(from + chunkSize, batch.models.size());
+            // Any error aborts the whole transaction
+            summary.add(collection.bulkWrite(session, batch.models.subList(from, to), new BulkWriteOptions().ordered(false)));
+        }
+        return new WriteSessionResult.CollectionResult(batch.collection, batch.models.size(), summary, System.nanoTime() - start, false, null);
+    }
+
+    private static WriteSessionResult.CollectionResult failed(Batch batch, RuntimeException e, long durationNanos) {
+        BulkWriteSummary summary = new BulkWriteSummary();
+        int code = e instanceof MongoException ? ((MongoException) e).getCode() : -1;
+        for (Object id : batch.ids) {
+            summary.addError(id, code, e.getMessage());
+        }
+        return new WriteSessionResult.CollectionResult(batch.collection, batch.models.size(), summary, durationNanos, false, e);
+    }
+
+    private WriteSession upsert(String collection, int id, BsonDocument document) {
+        return add(collection, id, new UpdateOneModel<>(new Document("_id", id), new Document("$set", document), new UpdateOptions().upsert(true)));
+    }
+
+    private WriteSession add(String collection, Object id, WriteModel<Document> model) {
+        checkOpen();
+        Batch batch = batches.computeIfAbsent(collection, Batch::new);
+        batch.models.add(model);
+        batch.ids.add(id);
+        return this;
+    }
+
+    private void checkOpen() {
+        if (committed) { throw new IllegalStateException("Session has already been committed"); }
+    }
+
+    private static class Batch {
+
+        final String                     collection;
+        final List<WriteModel<Document>> models = new ArrayList<>();
+        final List<Object>               ids    = new ArrayList<>();
+
+        Batch(String collection) {
+            this.collection = collection;
+        }
+    }
+
+}
@@ -0,0 +1,141 @@
+package org.spiget.database;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Outcome of a {@link WriteSession#commit()}: one result per written collection, in the order the collections were first written to
+ */
+public class WriteSessionResult {
+
+    private final List<CollectionResult> collections;
+    private final long                   durationNanos;
+    private final boolean                transactional;
+
+    WriteSessionResult(List<CollectionResult> collections, long durationNanos, boolean transactional) {
+        this.collections = Collections.unmodifiableList(collections);
+        this.durationNanos = durationNanos;
+        this.transactional = transactional;
+    }
+
+    public List<CollectionResult> getCollections() {
+        return collections;
+    }
+
+    /**
+     * @return the result of the collection, or <code>null</code> if the session didn't write to it
+     */
+    public CollectionResult get(String collection) {
+        for (CollectionResult result : collections) {
+            if (result.collection.equals(collection)) { return result; }
+        }
+        return null;
+    }
+
+    /**
+     * @return wall time of the whole commit
+     */
+    public long getDuration(TimeUnit unit) {
+        return unit.convert(durationNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public boolean isTransactional() {
+        return transactional;
+    }
+
+    /**
+     * @return <code>true</code> if any write failed or was skipped
+     */
+    public boolean hasErrors() {
+        for (CollectionResult result : collections) {
+            if (result.hasErrors() || result.skipped) { return true; }
+        }
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return "WriteSessionResult{" +
+                "transactional=" + transactional +
+                ", duration=" + getDuration(TimeUnit.MILLISECONDS) + "ms" +
+                ", collections=" + collections +
+                '}';
+    }
+
+    /**
+     * Writes of a session to a single collection
+     */
+    public static class CollectionResult {
+
+        private final String           collection;
+        private final int              operations;
+        private final BulkWriteSummary summary;
+        private final long             durationNanos;
+        private final boolean          skipped;
+        private final Throwable        failure;
+
+        CollectionResult(String collection, int operations, BulkWriteSummary summary, long durationNanos, boolean skipped, Throwable failure) {
+            this.collection = collection;
+            this.operations = operations;
+            this.summary = summary;
+            this.durationNanos = durationNanos;
+            this.skipped = skipped;
+            this.failure = failure;
+        }
+
+        public String getCollection() {
+            return collection;
+        }
+
+        /**
+         * @return number of writes the session collected for the collection
+         */
+        public int getOperations() {
+            return operations;
+        }
+
+        /**
+         * @return counts and per-item errors; every item has an error if the whole write failed
+         */
+        public BulkWriteSummary getSummary() {
+            return summary;
+        }
+
+        /**
+         * @return time spent writing to the collection, 0 if it was skipped or the transaction failed
+         */
+        public long getDuration(TimeUnit unit) {
+            return unit.convert(durationNanos, TimeUnit.NANOSECONDS);
+        }
+
+        /**
+         * @return <code>true</code> if the writes weren't sent because others failed (update request deletions)
+         */
+        public boolean isSkipped() {
+            return skipped;
+        }
+
+        /**
+         * @return the exception which failed the whole write, if any
+         */
+        public Throwable getFailure() {
+            return failure;
+        }
+
+        public boolean hasErrors() {
+            return failure != null || summary.hasErrors();
+        }
+
+        @Override
+        public String toString() {
+            return collection + "{" +
+                    "operations=" + operations +
+                    ", duration=" + getDuration(TimeUnit.MILLISECONDS) + "ms" +
+                    (skipped ? ", skipped" : "") +
+                    ", summary=" + summary +
+                    '}';
+        }
+    }
+
+}
@@ -0,0 +1,162 @@
+package org.spiget.database.test;
+
+import com.mongodb.client.model.WriteModel;
+import com.mongodb.client.result.DeleteResult;
+import com.mongodb.client.result.UpdateResult;
+import org.bson.BsonDocument;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.junit.Test;
+import org.spiget.data.resource.Resource;
+import org.spiget.data.resource.version.ResourceVersion;
+import org.spiget.database.BulkWriteSummary;
+import org.spiget.database.DatabaseClient;
+import org.spiget.database.DocumentStore;
+import org.spiget.database.EntityCache;
+import org.spiget.database.InMemoryStorageBackend;
+import org.spiget.database.StorageBackend;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class EntityCacheTest {
+
+	@Test
+	public void readThroughTest() {
+		EntityCache<String> cache = new EntityCache<>(10, 1, 1, TimeUnit.HOURS);
+		AtomicInteger loads = new AtomicInteger();
+
+		assertEquals("1", cache.get(1, id -> { loads.incrementAndGet(); return String.valueOf(id); }));
+		assertEquals("1", cache.get(1, id -> { loads.incrementAndGet(); return String.valueOf(id); }));
+		assertEquals(1, loads.get());
+		assertEquals(1, cache.getHitCount());
+		assertEquals(1, cache.getMissCount());
+
+		cache.invalidate(1);
+		assertEquals("1", cache.get(1, id -> { loads.incrementAndGet(); return String.valueOf(id); }));
+		assertEquals(2, loads.get());
+	}
+
+	@Test
+	public void negativeCachingTest() {
+		EntityCache<String> cache = new EntityCache<>(10, 1, 1, TimeUnit.HOURS);
+		AtomicInteger loads = new AtomicInteger();
+
+		assertNull(cache.get(5, id -> { loads.incrementAndGet(); return null; }));
+		assertNull(cache.get(5, id -> { loads.incrementAndGet(); return null; }));
+		assertEquals(1, loads.get());
+	}
+
+	@Test
+	public void evictionTest() {
+		EntityCache<String> cache = new EntityCache<>(2, 1, 1, TimeUnit.HOURS);
+
+		cache.get(1, String::valueOf);
+		cache.get(2, String::valueOf);
+		cache.get(1, String::valueOf); // 2 is now the least recently used
+		cache.get(3, String::valueOf);
+
+		assertEquals(2, cache.size());
+		assertEquals(1, cache.getEvictionCount());
+
+		AtomicInteger loads = new AtomicInteger();
+		cache.get(1, id -> { loads.incrementAndGet(); return String.valueOf(id); });
+		assertEquals(0, loads.get());
+		cache.get(2, id -> { loads.incrementAndGet(); return String.valueOf(id); });
+		assertEquals(1, loads.get());
+	}
+
+	@Test
+	public void expirationTest() throws InterruptedException {
+		EntityCache<String> cache = new EntityCache<>(10, 1, 1, TimeUnit.MILLISECONDS);
+
+		cache.get(1, String::valueOf);
+		Thread.sleep(5);
+		cache.get(1, String::valueOf);
+
+		assertEquals(1, cache.getExpirationCount());
+		assertEquals(2, cache.getMissCount());
+	}
+
+	@Test
+	public void invalidateDuringLoadTest() {
+		EntityCache<String> cache = new EntityCache<>(10, 1, 1, TimeUnit.HOURS);
+
+		// Writes to other ids don't discard the load
+		assertEquals("a", cache.get(1, id -> {
+			cache.invalidate(2);
+			return "a";
+		}));
+		assertEquals("a", cache.get(1, id -> "b"));
+
+		// A write to the same id does
+		assertEquals("c", cache.get(2, id -> {
+			cache.invalidate(2);
+			return "c";
+		}));
+		assertEquals("d", cache.get(2, id -> "d"));
+	}
+
+	@Test
+	public void readDuringWriteTest() throws Exception {
+		InMemoryStorageBackend backend = new InMemoryStorageBackend();
+		DatabaseClient[] client = new DatabaseClient[1];
+		// Reads the resource while its update is in flight, i.e. after the cache was invalidated but before the write
+		StorageBackend readingBackend = new StorageBackend() {
+			@Override
+			public DocumentStore getStore(String collection) {
+				DocumentStore store = backend.getStore(collection);
+				if (!collection.equals("resources")) { return store; }
+				return new DocumentStore() {
+					@Override
+					public String getName() { return store.getName(); }
+
+					@Override
+					public <T> List<T> find(Bson filter, Bson projection, Bson sort, int limit, Class<T> clazz) { return store.find(filter, projection, sort, limit, clazz); }
+
+					@Override
+					public void insertOne(BsonDocument document) { store.insertOne(document); }
+
+					@Override
+					public UpdateResult updateOne(Bson filter, Bson update, boolean upsert) {
+						assertEquals(1, client[0].getResource(1234).getVersion().getId());
+						return store.updateOne(filter, update, upsert);
+					}
+
+					@Override
+					public <T> T findOneAndUpdate(Bson filter, Bson update, Bson sort, Class<T> clazz) { return store.findOneAndUpdate(filter, update, sort, clazz); }
+
+					@Override
+					public DeleteResult deleteOne(Bson filter) { return store.deleteOne(filter); }
+
+					@Override
+					public DeleteResult deleteMany(Bson filter) { return store.deleteMany(filter); }
+
+					@Override
+					public void bulkWrite(List<? extends WriteModel<Document>> models, List<?> ids, BulkWriteSummary summary) { store.bulkWrite(models, ids, summary); }
+				};
+			}
+
+			@Override
+			public void close() {
+				backend.close();
+			}
+		};
+		client[0] = new DatabaseClient(readingBackend, "test");
+		client[0].enableEntityCache(10, 1, 1, TimeUnit.HOURS);
+
+		Resource resource = new Resource(1234, "a resource");
+		resource.setVersion(new ResourceVersion(1, "1.0"));
+		client[0].insertResource(resource);
+		assertEquals(1, client[0].getResource(1234).getVersion().getId());
+
+		resource.setVersion(new ResourceVersion(2, "1.1"));
+		client[0].updateResource(resource);
+		assertEquals(2, client[0].getResource(1234).getVersion().getId());
+		client[0].disconnect();
+	}
+
+}
@@ -0,0 +1,68 @@
+package org.spiget.database.test;
+
+import org.bson.BsonDocument;
+import org.junit.Test;
+import org.spiget.database.EntityFingerprints;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class EntityFingerprintsTest {
+
+	@Test
+	public void firstWriteIsFullTest() {
+		EntityFingerprints fingerprints = new EntityFingerprints(10);
+		EntityFingerprints.Diff diff = fingerprints.diff(1, BsonDocument.parse("{\"name\":\"Test\",\"rating\":{\"count\":1}}"));
+		assertTrue(diff.isFull());
+		assertFalse(diff.isUnchanged());
+		assertEquals(Arrays.asList("name", "rating"), diff.getChangedFields());
+	}
+
+	@Test
+	public void unchangedTest() {
+		EntityFingerprints fingerprints = new EntityFingerprints(10);
+		fingerprints.commit(fingerprints.diff(1, BsonDocument.parse("{\"name\":\"Test\",\"rating\":{\"count\":1}}")));
+
+		EntityFingerprints.Diff diff = fingerprints.diff(1, BsonDocument.parse("{\"name\":\"Test\",\"rating\":{\"count\":1}}"));
+		assertTrue(diff.isUnchanged());
+		assertTrue(diff.getSet().isEmpty());
+		assertTrue(diff.getUnset().isEmpty());
+	}
+
+	@Test
+	public void fieldDiffTest() {
+		EntityFingerprints fingerprints = new EntityFingerprints(10);
+		fingerprints.commit(fingerprints.diff(1, BsonDocument.parse("{\"name\":\"Test\",\"tag\":\"old\",\"rating\":{\"count\":1}}")));
+
+		EntityFingerprints.Diff diff = fingerprints.diff(1, BsonDocument.parse("{\"name\":\"Test\",\"rating\":{\"count\":2}}"));
+		assertFalse(diff.isUnchanged());
+		assertEquals(Collections.singletonList("rating"), diff.getChangedFields());
+		assertEquals(Collections.singletonList("tag"), diff.getRemovedFields());
+		assertEquals(BsonDocument.parse("{\"rating\":{\"count\":2}}"), diff.getSet());
+		assertTrue(diff.getUnset().containsKey("tag"));
+	}
+
+	@Test
+	public void typeChangeTest() {
+		EntityFingerprints fingerprints = new EntityFingerprints(10);
+		fingerprints.commit(fingerprints.diff(1, BsonDocument.parse("{\"downloads\":{\"$numberLong\":\"5\"}}")));
+
+		// Same number, different BSON type
+		EntityFingerprints.Diff diff = fingerprints.diff(1, BsonDocument.parse("{\"downloads\":5}"));
+		assertEquals(Collections.singletonList("downloads"), diff.getChangedFields());
+	}
+
+	@Test
+	public void evictionTest() {
+		EntityFingerprints fingerprints = new EntityFingerprints(2);
+		for (int i = 0; i < 3; i++) {
+			fingerprints.commit(fingerprints.diff(i, BsonDocument.parse("{\"name\":\"Test\"}")));
+		}
+		assertEquals(2, fingerprints.size());
+		assertTrue(fingerprints.diff(0, BsonDocument.parse("{\"name\":\"Test\"}")).isFull());
+		assertTrue(fingerprints.diff(2, BsonDocument.parse("{\"name\":\"Test\"}")).isUnchanged());
+	}
+
+}
@@ -0,0 +1,159 @@
+package org.spiget.database.test;
+
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.WriteModel;
+import com.mongodb.client.result.UpdateResult;
+import org.bson.BsonDocument;
+import org.bson.BsonInt32;
+import org.bson.BsonInt64;
+import org.bson.BsonString;
+import org.bson.Document;
+import org.junit.Test;
+import org.spiget.database.BulkWriteSummary;
+import org.spiget.database.DatabaseClient;
+import org.spiget.database.DocumentStore;
+import org.spiget.database.InMemoryStorageBackend;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class InMemoryStorageBackendTest {
+
+	@Test
+	public void idLookupTest() {
+		DocumentStore store = new InMemoryStorageBackend().getStore("resources");
+		for (int i = 1; i <= 5; i++) {
+			store.insertOne(BsonDocument.parse("{\"_id\":" + i + ",\"name\":\"Resource " + i + "\",\"description\":\"long\"}"));
+		}
+
+		List<BsonDocument> found = store.find(Filters.in("_id", Arrays.asList(2, 4, 6)), Projections.include("name"), new Document("_id", -1), 0, BsonDocument.class);
+		assertEquals(2, found.size());
+		assertEquals(BsonDocument.parse("{\"_id\":4,\"name\":\"Resource 4\"}"), found.get(0));
+		assertEquals(2, found.get(1).getInt32("_id").getValue());
+
+		// Stored documents are copies
+		found.get(0).put("name", new BsonString("changed"));
+		assertEquals("Resource 4", store.findFirst(new Document("_id", 4), null, BsonDocument.class).getString("name").getValue());
+	}
+
+	@Test
+	public void upsertTest() {
+		DocumentStore store = new InMemoryStorageBackend().getStore("resource_versions");
+		UpdateResult inserted = store.updateOne(new Document("_id", 7), new Document("$set", new Document("name", "1.0")), true);
+		assertEquals(0, inserted.getMatchedCount());
+		assertNotNull(inserted.getUpsertedId());
+
+		UpdateResult unchanged = store.updateOne(new Document("_id", 7), new Document("$set", new Document("name", "1.0")), true);
+		assertEquals(1, unchanged.getMatchedCount());
+		assertEquals(0, unchanged.getModifiedCount());
+
+		store.updateOne(new Document("_id", 7), new Document("$set", new Document("fetch.latest", 10L)).append("$unset", new Document("name", "")), false);
+		assertEquals(BsonDocument.parse("{\"_id\":7,\"fetch\":{\"latest\":{\"$numberLong\":\"10\"}}}"), store.findFirst(new Document("_id", 7), null, BsonDocument.class));
+	}
+
+	@Test
+	public void statusTest() throws Exception {
+		DatabaseClient client = new DatabaseClient(new InMemoryStorageBackend(), "test");
+		assertEquals("default", client.getStatus("missing", "default"));
+
+		client.updateStatus("crawl.page", 5);
+		client.updateStatus("crawl.page", 6);
+		assertEquals(6, (int) client.getStatus("crawl.page", 0));
+
+		Map<String, Object> values = new LinkedHashMap<>();
+		values.put("a", 1);
+		values.put("b", "two");
+		BulkWriteSummary summary = client.updateStatuses(values);
+		assertEquals(2, summary.getUpsertedCount());
+		assertFalse(summary.hasErrors());
+
+		client.renameStatus("b", "c");
+		assertNull(client.getStatus("b", null));
+		assertEquals("two", client.getStatus("c", null));
+
+		assertEquals(3, client.getStorage().getStore("status").find(null, null, null, 0, Document.class).size());
+		client.disconnect();
+	}
+
+	@Test
+	public void eventLookupTest() {
+		DocumentStore store = new InMemoryStorageBackend().getStore("webhooks");
+		store.insertOne(BsonDocument.parse("{\"_id\":\"a\",\"events\":[\"resource_update\",\"new_resource\"]}"));
+		store.insertOne(BsonDocument.parse("{\"_id\":\"b\",\"events\":[\"new_author\"]}"));
+		store.insertOne(BsonDocument.parse("{\"_id\":\"c\",\"events\":[\"new_resource\"]}"));
+
+		List<BsonDocument> found = store.find(new Document("events", "new_resource"), null, null, 0, BsonDocument.class);
+		assertEquals(2, found.size());
+		assertEquals("a", found.get(0).getString("_id").getValue());
+		assertEquals("c", found.get(1).getString("_id").getValue());
+
+		store.updateOne(new Document("_id", "c"), new Document("$set", new Document("events", Arrays.asList("new_author"))), false);
+		assertEquals(1, store.find(new Document("events", "new_resource"), null, null, 0, BsonDocument.class).size());
+		assertEquals(2, store.find(new Document("events", "new_author"), null, null, 0, BsonDocument.class).size());
+	}
+
+	@Test
+	public void updateRequestOrderTest() {
+		DocumentStore store = new InMemoryStorageBackend().getStore("update_requests");
+		int[] requested = { 30, 10, 20, 10 };
+		for (int i = 0; i < requested.length; i++) {
+			store.insertOne(new BsonDocument("requestedId", new BsonInt32(i)).append("requested", new BsonInt64(requested[i])));
+		}
+
+		List<BsonDocument> oldest = store.find(new Document(), Projections.exclude("requested"), new Document("requested", 1), 3, BsonDocument.class);
+		assertEquals(3, oldest.size());
+		assertEquals(1, oldest.get(0).getInt32("requestedId").getValue());
+		assertEquals(3, oldest.get(1).getInt32("requestedId").getValue());
+		assertEquals(2, oldest.get(2).getInt32("requestedId").getValue());
+		assertFalse(oldest.get(0).containsKey("requested"));
+
+		assertEquals(2, store.deleteMany(new Document("requestedId", new Document("$in", Arrays.asList(1, 3)))).getDeletedCount());
+		assertEquals(2, store.find(new Document(), null, new Document("requested", 1), 0, BsonDocument.class).get(0).getInt32("requestedId").getValue());
+	}
+
+	@Test
+	public void bulkWriteTest() {
+		InMemoryStorageBackend backend = new InMemoryStorageBackend();
+		DocumentStore store = backend.getStore("status");
+		List<WriteModel<Document>> models = new ArrayList<>();
+		List<Object> ids = new ArrayList<>();
+		for (int i = 0; i < 3; i++) {
+			models.add(new UpdateOneModel<>(new Document("_id", i), new Document("$set", new Document("key", "same")), new UpdateOptions().upsert(true)));
+			ids.add(i);
+		}
+		BulkWriteSummary summary = new BulkWriteSummary();
+		store.bulkWrite(models, ids, summary);
+
+		// Unordered: the duplicates of the unique key fail, the first one is written
+		assertEquals(1, summary.getUpsertedCount());
+		assertEquals(2, summary.getErrors().size());
+		assertEquals(11000, summary.getErrors().get(0).getCode());
+		assertEquals(1, summary.getErrors().get(0).getId());
+	}
+
+	@Test
+	public void bulkWriteUnsupportedTest() {
+		DocumentStore store = new InMemoryStorageBackend().getStore("resources");
+		List<WriteModel<Document>> models = Arrays.asList(
+				new UpdateOneModel<>(new Document("_id", 1), new Document("$set", new Document("name", "a")), new UpdateOptions().upsert(true)),
+				new UpdateOneModel<>(new Document("_id", 2), new Document("$push", new Document("tags", "b")), new UpdateOptions().upsert(true)),
+				new UpdateOneModel<>(new Document("_id", 3), new Document("$set", new Document("name", "c")), new UpdateOptions().upsert(true)));
+		BulkWriteSummary summary = new BulkWriteSummary();
+		store.bulkWrite(models, Arrays.asList(1, 2, 3), summary);
+
+		// Only the item with the unsupported operator fails, the rest of the batch is still written and counted
+		assertEquals(2, summary.getUpsertedCount());
+		assertEquals(1, summary.getErrors().size());
+		assertEquals(2, summary.getErrors().get(0).getId());
+		assertEquals(2, store.find(null, null, null, 0, BsonDocument.class).size());
+	}
+
+}
@@ -0,0 +1,35 @@
+package org.spiget.database.test;
+
+import org.junit.Test;
+import org.spiget.database.LatencyHistogram;
+
+import static org.junit.Assert.*;
+
+public class LatencyHistogramTest {
+
+	@Test
+	public void percentileTest() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (int i = 1; i <= 1000; i++) {
+			histogram.record(i * 1000L);
+		}
+
+		assertEquals(1000, histogram.getCount());
+		assertEquals(1000000, histogram.getMax());
+		assertEquals(500500, histogram.getMean(), 0.001);
+
+		// Buckets are at most 12.5% wide
+		long p50 = histogram.getPercentile(50);
+		assertTrue(p50 >= 500000 && p50 <= 500000 * 1.125);
+		long p99 = histogram.getPercentile(99);
+		assertTrue(p99 >= 990000 && p99 <= 1000000);
+	}
+
+	@Test
+	public void emptyTest() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		assertEquals(0, histogram.getPercentile(99));
+		assertEquals(0, histogram.getMean(), 0);
+	}
+
+}
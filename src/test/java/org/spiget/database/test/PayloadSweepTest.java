@@ -0,0 +1,93 @@
+package org.spiget.database.test;
+
+import com.google.gson.JsonObject;
+import org.bson.BsonDocument;
+import org.bson.BsonInt64;
+import org.bson.BsonString;
+import org.bson.Document;
+import org.junit.Test;
+import org.spiget.data.resource.Resource;
+import org.spiget.database.DatabaseClient;
+import org.spiget.database.DocumentStore;
+import org.spiget.database.EntityView;
+import org.spiget.database.InMemoryStorageBackend;
+import org.spiget.database.SpigetGson;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class PayloadSweepTest {
+
+	@Test
+	public void sweepTest() throws Exception {
+		DatabaseClient client = new DatabaseClient(new InMemoryStorageBackend(), "test");
+		client.enablePayloadOffload(16);
+
+		StringBuilder description = new StringBuilder();
+		for (int i = 0; i < 100; i++) {
+			description.append("a long description ");
+		}
+		JsonObject json = new JsonObject();
+		json.addProperty("id", 1234);
+		json.addProperty("name", "a resource");
+		json.addProperty("description", description.toString());
+		client.insertResource(SpigetGson.RESOURCE.fromJson(json, Resource.class));
+
+		DocumentStore payloads = client.getStorage().getStore("resource_payloads");
+		BsonDocument resource = client.getStorage().getStore("resources").findFirst(new Document("_id", 1234), null, BsonDocument.class);
+		String hash = resource.getArray("payloads").get(0).asDocument().getString("hash").getValue();
+
+		// Both unused for a long time, but only the orphan isn't referenced
+		payloads.updateOne(new Document("_id", hash), new Document("$set", new Document("touched", 0L)), false);
+		payloads.insertOne(new BsonDocument("_id", new BsonString("orphan")).append("touched", new BsonInt64(0)));
+		// Recently used (e.g. by a resource write in flight)
+		payloads.insertOne(new BsonDocument("_id", new BsonString("recent")).append("touched", new BsonInt64(System.currentTimeMillis())));
+
+		assertEquals(1, client.sweepPayloads(2, TimeUnit.HOURS));
+		assertNull(payloads.findFirst(new Document("_id", "orphan"), null, BsonDocument.class));
+		assertNotNull(payloads.findFirst(new Document("_id", "recent"), null, BsonDocument.class));
+		assertEquals(description.toString(), client.getResourcePayload(1234, "description"));
+
+		try {
+			client.sweepPayloads(1, TimeUnit.MINUTES);
+			fail("Swept with a grace period shorter than the touch interval");
+		} catch (IllegalArgumentException ignored) {
+		}
+		client.disconnect();
+	}
+
+	@Test
+	public void readWithoutOffloadTest() throws Exception {
+		InMemoryStorageBackend backend = new InMemoryStorageBackend();
+		DatabaseClient writer = new DatabaseClient(backend, "test");
+		writer.enablePayloadOffload(16);
+		DatabaseClient reader = new DatabaseClient(backend, "test");
+
+		StringBuilder description = new StringBuilder();
+		for (int i = 0; i < 100; i++) {
+			description.append("a long description ");
+		}
+		JsonObject json = new JsonObject();
+		json.addProperty("id", 1234);
+		json.addProperty("name", "a resource");
+		json.addProperty("description", description.toString());
+		writer.insertResource(SpigetGson.RESOURCE.fromJson(json, Resource.class));
+
+		// Offloaded by the writer, put back by the reader
+		assertEquals(description.toString(), reader.getResource(1234).getDescription());
+		assertEquals(description.toString(), reader.getResource(1234, EntityView.fields("name", "description")).getDescription());
+		assertEquals(description.toString(), reader.getResources(1234).get(1234).getDescription());
+
+		// Stored inline again by the reader, which drops the writer's references
+		json.addProperty("description", "a short one");
+		reader.updateResource(SpigetGson.RESOURCE.fromJson(json, Resource.class));
+		BsonDocument stored = backend.getStore("resources").findFirst(new Document("_id", 1234), null, BsonDocument.class);
+		assertFalse(stored.containsKey("payloads"));
+		assertEquals("a short one", writer.getResource(1234).getDescription());
+
+		writer.disconnect();
+		reader.disconnect();
+	}
+
+}
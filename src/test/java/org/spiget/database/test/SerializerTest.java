@@ -2,11 +2,20 @@ package org.spiget.database.test;
 
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
+import com.mongodb.MongoClientSettings;
+import org.bson.BsonDocument;
+import org.bson.BsonDocumentReader;
+import org.bson.BsonDocumentWriter;
+import org.bson.codecs.Codec;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
 import org.junit.Test;
 import org.spiget.data.author.Author;
 import org.spiget.data.category.Category;
 import org.spiget.data.resource.Resource;
 import org.spiget.data.resource.version.ResourceVersion;
+import org.spiget.database.DatabaseParser;
+import org.spiget.database.SpigetCodecProvider;
 import org.spiget.database.SpigetGson;
 
 import java.io.IOException;
@@ -40,4 +49,43 @@ public class SerializerTest {
 		assertFalse(categoryObject.has("name"));
 	}
 
+	@Test
+	public void resourceCodecTest() throws IOException {
+		Resource resource = new Resource(1234, "a resource");
+		resource.setAuthor(new Author(6643, "inventivetalent"));
+		resource.setCategory(new Category(1, "fake category"));
+		resource.setVersion(new ResourceVersion(0,"1.0"));
+
+		BsonDocument document = DatabaseParser.toBsonDocument(SpigetGson.RESOURCE, resource);
+
+		assertTrue(document.containsKey("author"));
+		assertTrue(document.containsKey("category"));
+
+		BsonDocument authorDocument = document.getDocument("author");
+		BsonDocument categoryDocument = document.getDocument("category");
+
+		assertEquals(6643, authorDocument.getInt32("id").getValue());
+		assertFalse(authorDocument.containsKey("name"));
+		assertFalse(authorDocument.containsKey("icon"));
+
+		assertEquals(1, categoryDocument.getInt32("id").getValue());
+		assertFalse(categoryDocument.containsKey("name"));
+
+		// Same document as the legacy JSON string round trip
+		assertEquals(DatabaseParser.toBsonDocumentViaString(SpigetGson.RESOURCE.toJsonTree(resource)), document);
+
+		// Round trip through the codec the driver uses
+		Codec<Resource> codec = new SpigetCodecProvider().get(Resource.class, MongoClientSettings.getDefaultCodecRegistry());
+		BsonDocument encoded = new BsonDocument();
+		codec.encode(new BsonDocumentWriter(encoded), resource, EncoderContext.builder().build());
+		assertEquals(document, encoded);
+
+		Resource decoded = codec.decode(new BsonDocumentReader(encoded), DecoderContext.builder().build());
+		assertEquals(1234, decoded.getId());
+		assertEquals("a resource", decoded.getName());
+		assertEquals(6643, decoded.getAuthor().getId());
+		assertEquals(1, decoded.getCategory().getId());
+		assertEquals(0, decoded.getVersion().getId());
+	}
+
 }
@@ -0,0 +1,100 @@
+package org.spiget.database.test;
+
+import com.mongodb.MongoWriteException;
+import org.bson.BsonBoolean;
+import org.bson.BsonDocument;
+import org.bson.BsonInt32;
+import org.junit.Test;
+import org.spiget.data.UpdateRequest;
+import org.spiget.database.DatabaseClient;
+import org.spiget.database.InMemoryStorageBackend;
+import org.spiget.database.SpigetGson;
+import org.spiget.database.UpdateRequestLease;
+import org.spiget.database.UpdateRequestQueue;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class UpdateRequestQueueTest {
+
+	private static UpdateRequest request(int requestedId) {
+		return SpigetGson.UPDATE_REQUEST.fromJson("{\"requestedId\":" + requestedId + "}", UpdateRequest.class);
+	}
+
+	@Test
+	public void dedupTest() {
+		UpdateRequestQueue queue = new UpdateRequestQueue(new DatabaseClient(new InMemoryStorageBackend(), "test"));
+
+		assertTrue(queue.enqueue(request(1)));
+		assertFalse(queue.enqueue(request(1)));
+		assertTrue(queue.enqueue(request(2)));
+		assertEquals(2, queue.countAvailable());
+
+		// A claimed request doesn't absorb new ones
+		List<UpdateRequestLease> leases = queue.claim("worker", 1, 1, TimeUnit.HOURS);
+		assertEquals(1, leases.size());
+		assertEquals(1, leases.get(0).getRequest().getRequestedId());
+		assertTrue(queue.enqueue(request(1)));
+		assertFalse(queue.enqueue(request(1)));
+		assertEquals(2, queue.countAvailable());
+
+		// Releasing it merges it into the request queued in the meantime
+		assertTrue(queue.release(leases.get(0)));
+		assertEquals(2, queue.countAvailable());
+	}
+
+	@Test
+	public void uniquePendingTest() {
+		DatabaseClient client = new DatabaseClient(new InMemoryStorageBackend(), "test");
+		client.getStorage().getStore("update_requests").insertOne(new BsonDocument("requestedId", new BsonInt32(1)).append("pending", BsonBoolean.TRUE));
+		// Requests which aren't pending (claimed, or legacy documents) don't count
+		client.getStorage().getStore("update_requests").insertOne(new BsonDocument("requestedId", new BsonInt32(1)));
+		try {
+			client.getStorage().getStore("update_requests").insertOne(new BsonDocument("requestedId", new BsonInt32(1)).append("pending", BsonBoolean.TRUE));
+			fail("Inserted a second pending request");
+		} catch (MongoWriteException e) {
+			assertEquals(11000, e.getCode());
+		}
+	}
+
+	@Test
+	public void leaseExpiryTest() throws InterruptedException {
+		UpdateRequestQueue queue = new UpdateRequestQueue(new DatabaseClient(new InMemoryStorageBackend(), "test"));
+		queue.enqueue(request(1));
+
+		UpdateRequestLease first = queue.claim("a", 10, 1, TimeUnit.MILLISECONDS).get(0);
+		assertEquals(1, first.getDeliveries());
+		Thread.sleep(10);
+		assertTrue(first.isExpired());
+
+		List<UpdateRequestLease> reclaimed = queue.claim("b", 10, 1, TimeUnit.HOURS);
+		assertEquals(1, reclaimed.size());
+		assertEquals(2, reclaimed.get(0).getDeliveries());
+		assertEquals(first.getId(), reclaimed.get(0).getId());
+
+		// The first owner lost the lease
+		assertFalse(queue.renew(first, 1, TimeUnit.HOURS));
+		assertFalse(queue.complete(first));
+		assertTrue(queue.claim("c", 10, 1, TimeUnit.HOURS).isEmpty());
+	}
+
+	@Test
+	public void ackTest() {
+		UpdateRequestQueue queue = new UpdateRequestQueue(new DatabaseClient(new InMemoryStorageBackend(), "test"));
+		queue.enqueue(request(1));
+		queue.enqueue(request(2));
+
+		List<UpdateRequestLease> leases = queue.claim("worker", 10, 1, TimeUnit.HOURS);
+		assertEquals(2, leases.size());
+		assertEquals(0, queue.countAvailable());
+
+		assertTrue(queue.renew(leases.get(0), 2, TimeUnit.HOURS));
+		assertTrue(queue.complete(leases.get(0)));
+		assertFalse(queue.complete(leases.get(0)));
+		assertTrue(queue.complete(leases.get(1)));
+		assertTrue(queue.claim("worker", 10, 1, TimeUnit.HOURS).isEmpty());
+	}
+
+}
@@ -0,0 +1,68 @@
+package org.spiget.database.test;
+
+import org.bson.BsonDocument;
+import org.bson.Document;
+import org.junit.Test;
+import org.spiget.data.author.Author;
+import org.spiget.data.category.Category;
+import org.spiget.data.resource.Resource;
+import org.spiget.data.resource.version.ResourceVersion;
+import org.spiget.database.DatabaseClient;
+import org.spiget.database.InMemoryStorageBackend;
+import org.spiget.database.WriteSession;
+import org.spiget.database.WriteSessionResult;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class WriteSessionTest {
+
+	@Test
+	public void commitTest() throws Exception {
+		DatabaseClient client = new DatabaseClient(new InMemoryStorageBackend(), "test");
+		client.setBulkChunkSize(1);
+
+		Resource resource = new Resource(1234, "a resource");
+		resource.setAuthor(new Author(6643, "inventivetalent"));
+		resource.setCategory(new Category(1, "fake category"));
+		resource.setVersion(new ResourceVersion(2, "1.1"));
+		client.insertResource(resource);
+
+		WriteSession session = client.startWriteSession()
+				.updateResource(resource)
+				.updateOrInsertVersions(resource, Arrays.asList(new ResourceVersion(1, "1.0"), new ResourceVersion(2, "1.1")))
+				.updateOrInsertAuthor(new Author(6643, "inventivetalent"));
+		assertEquals(4, session.size());
+
+		WriteSessionResult result = session.commit();
+		assertFalse(result.isTransactional());
+		assertFalse(result.hasErrors());
+		assertEquals(3, result.getCollections().size());
+		assertNull(result.get("update_requests"));
+
+		WriteSessionResult.CollectionResult versions = result.get("resource_versions");
+		assertEquals(2, versions.getOperations());
+		assertEquals(2, versions.getSummary().getUpsertedCount());
+		// One bulk write per chunk
+		assertEquals(2, versions.getSummary().getChunkCount());
+
+		assertEquals(1, result.get("resources").getSummary().getMatchedCount());
+		assertEquals(1, result.get("authors").getSummary().getUpsertedCount());
+		assertNotNull(client.getStorage().getStore("resource_versions").findFirst(new Document("_id", 1), null, BsonDocument.class));
+		assertNotNull(client.getStorage().getStore("authors").findFirst(new Document("_id", 6643), null, BsonDocument.class));
+
+		try {
+			session.commit();
+			fail("Committed twice");
+		} catch (IllegalStateException ignored) {
+		}
+		client.disconnect();
+	}
+
+	@Test(expected = UnsupportedOperationException.class)
+	public void transactionUnsupportedTest() {
+		new DatabaseClient(new InMemoryStorageBackend(), "test").startWriteSession().transactional(true);
+	}
+
+}